@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A FlightTrack whose fixes live in a FixArena. The track itself is only a view
+ * of its region of an arena segment: the lat, lon, alt and time columns follow
+ * each other, starting at offset. Fixes can not be added once a track is in the
+ * arena, but they can be written in place.
+ * @author James Betker
+ */
+public class ArenaFlightTrack extends FlightTrack {
+
+    ArenaFlightTrack(FixArena aArena, FixArena.Segment aSegment, ByteBuffer aBuffer, int aOffset, int aSize) {
+        arena = aArena;
+        segment = aSegment;
+        buffer = aBuffer;
+        size = aSize;
+        latOffset = aOffset;
+        lonOffset = aOffset + aSize * 8;
+        altOffset = aOffset + 2 * aSize * 8;
+        timeOffset = aOffset + 3 * aSize * 8;
+    }
+
+    @Override
+    public void add(double aLat, double aLon, double aAlt, long aEpochMillis) {
+        throw new UnsupportedOperationException("Tracks in a FixArena can not grow.");
+    }
+
+    @Override
+    public void addAll(double[] aLat, double[] aLon, double[] aAlt, int aCount) {
+        throw new UnsupportedOperationException("Tracks in a FixArena can not grow.");
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public double lat(int i) {
+        return buffer.getDouble(latOffset + (checkIndex(i) << 3));
+    }
+
+    @Override
+    public double lon(int i) {
+        return buffer.getDouble(lonOffset + (checkIndex(i) << 3));
+    }
+
+    @Override
+    public double alt(int i) {
+        return buffer.getDouble(altOffset + (checkIndex(i) << 3));
+    }
+
+    @Override
+    public long time(int i) {
+        return buffer.getLong(timeOffset + (checkIndex(i) << 3));
+    }
+
+    @Override
+    public void setTime(int i, long aEpochMillis) {
+        buffer.putLong(timeOffset + (checkIndex(i) << 3), aEpochMillis);
+    }
+
+    /**
+     * Writes a whole fix.
+     */
+    void set(int i, double aLat, double aLon, double aAlt, long aEpochMillis) {
+        int offset = checkIndex(i) << 3;
+        buffer.putDouble(latOffset + offset, aLat);
+        buffer.putDouble(lonOffset + offset, aLon);
+        buffer.putDouble(altOffset + offset, aAlt);
+        buffer.putLong(timeOffset + offset, aEpochMillis);
+    }
+
+    void setLat(int i, double aLat) {
+        buffer.putDouble(latOffset + (checkIndex(i) << 3), aLat);
+    }
+
+    void setLon(int i, double aLon) {
+        buffer.putDouble(lonOffset + (checkIndex(i) << 3), aLon);
+    }
+
+    void setAlt(int i, double aAlt) {
+        buffer.putDouble(altOffset + (checkIndex(i) << 3), aAlt);
+    }
+
+    /**
+     * The buffer only checks against the bounds of the whole segment, which
+     * would let a bad index read a neighbouring track.
+     */
+    private int checkIndex(int i) {
+        if(i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Fix " + i + " of " + size);
+        }
+        return i;
+    }
+
+    /**
+     * Gives the space of this track back to its arena. The track must not be
+     * read afterwards.
+     */
+    public void release() {
+        arena.release(this);
+    }
+
+    final FixArena arena;
+    final FixArena.Segment segment;
+    final ByteBuffer buffer;
+    final int size;
+    final int latOffset;
+    final int lonOffset;
+    final int altOffset;
+    final int timeOffset;
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.util.Arrays;
+
+/**
+ * A FlightTrack which keeps every column in a primitive array on the heap.
+ * @author James Betker
+ */
+public class ArrayFlightTrack extends FlightTrack {
+
+    public ArrayFlightTrack(int aCapacity) {
+        lat = new double[aCapacity];
+        lon = new double[aCapacity];
+        alt = new double[aCapacity];
+        epochMillis = new long[aCapacity];
+    }
+
+    /**
+     * Adopts the specified columns, without copying them.
+     * @param aLat
+     * @param aLon
+     * @param aAlt
+     * @param aEpochMillis
+     * @param aSize The number of fixes in the columns.
+     */
+    ArrayFlightTrack(double[] aLat, double[] aLon, double[] aAlt, long[] aEpochMillis, int aSize) {
+        lat = aLat;
+        lon = aLon;
+        alt = aAlt;
+        epochMillis = aEpochMillis;
+        size = aSize;
+    }
+
+    @Override
+    public void add(double aLat, double aLon, double aAlt, long aEpochMillis) {
+        ensureCapacity(size + 1);
+        lat[size] = aLat;
+        lon[size] = aLon;
+        alt[size] = aAlt;
+        epochMillis[size] = aEpochMillis;
+        size++;
+        projection = null;
+    }
+
+    @Override
+    public void addAll(double[] aLat, double[] aLon, double[] aAlt, int aCount) {
+        ensureCapacity(size + aCount);
+        System.arraycopy(aLat, 0, lat, size, aCount);
+        System.arraycopy(aLon, 0, lon, size, aCount);
+        System.arraycopy(aAlt, 0, alt, size, aCount);
+        size += aCount;
+        projection = null;
+    }
+
+    private void ensureCapacity(int aCapacity) {
+        if(aCapacity > lat.length) {
+            int capacity = Math.max(aCapacity, Math.max(16, lat.length * 2));
+            lat = Arrays.copyOf(lat, capacity);
+            lon = Arrays.copyOf(lon, capacity);
+            alt = Arrays.copyOf(alt, capacity);
+            epochMillis = Arrays.copyOf(epochMillis, capacity);
+        }
+    }
+
+    @Override
+    public void trimToSize() {
+        if(lat.length != size) {
+            lat = Arrays.copyOf(lat, size);
+            lon = Arrays.copyOf(lon, size);
+            alt = Arrays.copyOf(alt, size);
+            epochMillis = Arrays.copyOf(epochMillis, size);
+        }
+    }
+
+    @Override
+    public FlightTrack slice(int aStart, int aEnd) {
+        ArrayFlightTrack slice = new ArrayFlightTrack(0);
+        slice.lat = Arrays.copyOfRange(lat, aStart, aEnd);
+        slice.lon = Arrays.copyOfRange(lon, aStart, aEnd);
+        slice.alt = Arrays.copyOfRange(alt, aStart, aEnd);
+        slice.epochMillis = Arrays.copyOfRange(epochMillis, aStart, aEnd);
+        slice.size = aEnd - aStart;
+        return slice;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public double lat(int i) {
+        return lat[i];
+    }
+
+    @Override
+    public double lon(int i) {
+        return lon[i];
+    }
+
+    @Override
+    public double alt(int i) {
+        return alt[i];
+    }
+
+    @Override
+    public long time(int i) {
+        return epochMillis[i];
+    }
+
+    @Override
+    public void setTime(int i, long aEpochMillis) {
+        epochMillis[i] = aEpochMillis;
+    }
+
+    double[] lat;
+    double[] lon;
+    double[] alt;
+    long[] epochMillis;
+    int size;
+}
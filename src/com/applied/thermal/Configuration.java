@@ -15,6 +15,8 @@
  */
 package com.applied.thermal;
 
+import com.applied.thermal.Main.OutputType;
+import com.applied.thermal.OLCKmlRecord.ParserType;
 import com.applied.thermal.Units.UnitSystem;
 import com.applied.thermal.types.ThermalCategory.ThermalSortingField;
 
@@ -31,12 +33,78 @@ public class Configuration {
     public UnitSystem CurrentUnitSystem = UnitSystem.Feet;
     public ThermalSortingField ColorByField = ThermalSortingField.ThermalStrength;
     public int NumberThermalStyles = 12;
+    public ParserType KmlParser = ParserType.Mapped;
+    public String FlightCacheDirectory = "flightcache"; // Parsed flights are cached here, null disables the cache
+    public boolean CompressFlightCache = true;
+    public String ThermalStoreDirectory = null; // Incremental mode: detected thermals are kept here and only new or changed files are processed, null disables it
+    public String FilterFromDate = null; // dd/MM/yyyy, flights before this date are skipped without being parsed
+    public String FilterToDate = null; // dd/MM/yyyy, flights after this date are skipped without being parsed
+    public String FilterPilot = null; // Only flights of this pilot are processed, ignoring case
+    public String FilterGliderPattern = null; // Only flights whose airplane contains a match of this regular expression are processed
+    public double[] FilterBoundingBox = null; // { south, west, north, east }, only flights which pass through this box are processed
+    public boolean UseFixArena = false; // Keep the fixes of parsed flights in large off-heap segments instead of per-flight arrays
+    public int FixArenaSegmentBytes = 64 << 20; // With UseFixArena, the size of a segment
+    public String FixArenaDirectory = null; // With UseFixArena, segments are memory-mapped from temporary files here, null uses direct buffers
+    public boolean QuantizeTracks = false; // Store flights and thermals in fixed point, 16 instead of 32 bytes per fix; tracks which would not round-trip exactly are kept as is
+    public String TerrainDirectory = null; // SRTM .hgt tiles are read from here to place thermal ground positions on the terrain and report heights above ground, null assumes sea level everywhere
+    public int TerrainCacheTiles = 16; // With TerrainDirectory, the number of tiles kept memory-mapped
+    public String LiftMapFile = null; // Lift aggregates of every thermal, binned into geohash cells, are written here, null disables them
+    public int[] LiftMapPrecisions = { 4, 5, 6, 7 }; // With LiftMapFile, the geohash lengths of the cells, 5 is about 5km and 7 about 150m across
+    public String[] LiftMapInputs = null; // With LiftMapFile, aggregates of earlier runs, e.g. seasons, which are merged into it
+    public String HeatmapDirectory = null; // With LiftMapFile, a PNG tile pyramid of the lift aggregates is rendered here, and heatmap.kml which shows it is written next to the output KML
+    public HeatmapRenderer.Value HeatmapValue = HeatmapRenderer.Value.Density;
+    public int HeatmapMinZoom = 4; // With HeatmapDirectory, the coarsest zoom level, tiles are 180 / 2^zoom degrees
+    public int HeatmapMaxZoom = 12; // With HeatmapDirectory, the finest zoom level
+    public double HeatmapMaxClimbRate = 4; // With HeatmapValue MeanClimbRate, the climb rate drawn in the hottest color
+    public int HeatmapThreads = Runtime.getRuntime().availableProcessors(); // Used to render heatmap tiles
+    public boolean FindHotspots = false; // Cluster the thermals of all flights into hotspots and write them to hotspots.kml, requires MaxThermalsInMemory 0 and is rejected at startup otherwise
+    public double HotspotRadius = 500; // With FindHotspots, the distance within which thermals are neighbours
+    public int HotspotMinThermals = 5; // With FindHotspots, the neighbours, itself included, a thermal needs to form the core of a hotspot
+    public ThermalIndex.Anchor HotspotAnchor = ThermalIndex.Anchor.Ground; // With FindHotspots, the position of each thermal which is clustered
+    public OutputType KmlOutput = OutputType.Streaming;
+    public int MaxThermalsInMemory = 0; // Beyond this many thermals, sorted runs are spilled to temporary files and merged for output, 0 keeps every thermal in memory
+    public int IngestThreads = Runtime.getRuntime().availableProcessors(); // 1 processes files serially
+    public boolean UseVirtualThreads = false; // Only used on JDKs which support them
+    public int CompressionThreads = Runtime.getRuntime().availableProcessors(); // Used to compress KMZ output
+    public boolean UseLevelOfDetail = false; // Streaming and Kmz output only: split categories into tiles which are only drawn when zoomed in
+    public double SimplificationTolerance = 25; // With UseLevelOfDetail, thermal lines are simplified to within this distance
+    public double LodTileDegrees = .25; // With UseLevelOfDetail, the size of a tile in degrees of latitude and longitude
+    public int LodMinPixels = 256; // With UseLevelOfDetail, the size on screen in pixels from which on a tile is drawn
+    public boolean UsePlanarGeometry = false; // Project flights onto a local plane instead of using exact geodesics, see LocalProjection for the error bound
+    public int LiveFixBufferSize = 128; // Recent fixes kept per glider by LiveThermalDetector, should cover at least one minute of fixes
+    public long LiveGliderTimeoutMillis = 30 * 60 * 1000; // Gliders not heard from for this long are dropped by LiveThermalTracker
     
-    static Configuration instance;
+    /**
+     * @return The arena set up by main() from UseFixArena, which readers store
+     *         the fixes of parsed flights in, or null to keep them on the heap.
+     */
+    public FixArena getFixArena() {
+        return fixArena;
+    }
+    
+    public void setFixArena(FixArena aArena) {
+        fixArena = aArena;
+    }
+    
+    /**
+     * @return The terrain set up by main() from TerrainDirectory, which thermals
+     *         are placed on, or null to assume sea level everywhere.
+     */
+    public TerrainService getTerrain() {
+        return terrain;
+    }
+    
+    public void setTerrain(TerrainService aTerrain) {
+        terrain = aTerrain;
+    }
+    
+    // Created eagerly so that worker threads always see the same instance.
+    static final Configuration instance = new Configuration();
     public static Configuration getConfig() {
-        if(instance == null) {
-            instance = new Configuration();
-        }
         return instance;
     }
+    
+    // Services built from the fields above. Set up before any worker thread starts.
+    FixArena fixArena;
+    TerrainService terrain;
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Packs the fixes of many flights into a few large off-heap segments, so that
+ * the garbage collector does not have to deal with the arrays of every flight.
+ *
+ * Segments are either direct ByteBuffers or memory-mapped temporary files, which
+ * the operating system can page out. A flight reserves room for its fixes in the
+ * current segment, as four columns of 8 byte values, and readers and the flight
+ * cache write its fixes straight into it, so they never exist as arrays of their
+ * own. From then on the flight reads its fixes through an ArenaFlightTrack which
+ * only knows its offset and length.
+ *
+ * Each segment counts the tracks that live in it. Once a segment is full and
+ * every track in it has been released, it is reused for new tracks.
+ * @author James Betker
+ */
+public class FixArena {
+    static final int BYTES_PER_FIX = 4 * 8;
+
+    /**
+     * @param aSegmentBytes The size of a segment. Flights larger than this get
+     *                      a segment of their own.
+     * @param aDirectory The directory to map segments from, or null to use direct
+     *                   buffers.
+     */
+    public FixArena(int aSegmentBytes, File aDirectory) {
+        segmentBytes = aSegmentBytes;
+        directory = aDirectory;
+        if(directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Copies aTrack into the arena.
+     * @param aTrack
+     * @return A track reading the copied fixes.
+     */
+    public ArenaFlightTrack store(FlightTrack aTrack) {
+        final int count = aTrack.size();
+        ArenaFlightTrack track = reserve(count);
+        for(int i = 0; i < count; i++) {
+            track.set(i, aTrack.lat(i), aTrack.lon(i), aTrack.alt(i), aTrack.time(i));
+        }
+        return track;
+    }
+
+    /**
+     * Copies the first aCount fixes of the specified columns into the arena.
+     * @param aLat
+     * @param aLon
+     * @param aAlt
+     * @param aCount
+     * @return A track reading the copied fixes, which have no timestamps yet.
+     */
+    public ArenaFlightTrack store(double[] aLat, double[] aLon, double[] aAlt, int aCount) {
+        ArenaFlightTrack track = reserve(aCount);
+        for(int i = 0; i < aCount; i++) {
+            track.set(i, aLat[i], aLon[i], aAlt[i], 0);
+        }
+        return track;
+    }
+
+    /**
+     * Reserves room for aCount fixes. The fixes of the returned track hold
+     * whatever the segment held before until they are written with set().
+     * @param aCount
+     * @return
+     */
+    public ArenaFlightTrack reserve(int aCount) {
+        if(aCount > Integer.MAX_VALUE / BYTES_PER_FIX) {
+            throw new IllegalArgumentException("Track too large for an arena segment: " + aCount + " fixes");
+        }
+        final int bytes = aCount * BYTES_PER_FIX;
+        Segment segment;
+        int offset;
+        synchronized(this) {
+            if(current == null || current.buffer.capacity() - current.used < bytes) {
+                retire(current);
+                current = takeSegment(bytes);
+            }
+            segment = current;
+            offset = segment.used;
+            segment.used += bytes;
+            segment.liveTracks++;
+        }
+
+        // The region is reserved, so it can be filled without holding the lock.
+        return new ArenaFlightTrack(this, segment, segment.buffer.duplicate(), offset, aCount);
+    }
+
+    /**
+     * Gives the space of aTrack back to the arena. aTrack must not be read
+     * afterwards.
+     * @param aTrack
+     */
+    public synchronized void release(ArenaFlightTrack aTrack) {
+        Segment segment = aTrack.segment;
+        segment.liveTracks--;
+        if(segment.liveTracks == 0 && segment != current) {
+            free.add(segment);
+        }
+    }
+
+    private void retire(Segment aSegment) {
+        if(aSegment != null && aSegment.liveTracks == 0) {
+            free.add(aSegment);
+        }
+    }
+
+    private Segment takeSegment(int aBytes) {
+        for(int i = free.size(); i > 0; i--) {
+            Segment segment = free.poll();
+            if(segment.buffer.capacity() >= aBytes) {
+                segment.used = 0;
+                return segment;
+            }
+            // Too small for this track; it stays available for the next one.
+            free.add(segment);
+        }
+        Segment segment = new Segment();
+        segment.buffer = allocate(Math.max(segmentBytes, aBytes));
+        segmentsAllocated++;
+        return segment;
+    }
+
+    private ByteBuffer allocate(int aBytes) {
+        if(directory == null) {
+            return ByteBuffer.allocateDirect(aBytes);
+        }
+        try {
+            File file = File.createTempFile("fixes", ".arena", directory);
+            file.deleteOnExit();
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping stays valid after the channel is closed.
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, aBytes);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The number of segments allocated since the arena was created.
+     */
+    public synchronized int getSegmentsAllocated() {
+        return segmentsAllocated;
+    }
+
+    /**
+     * A block of off-heap memory which tracks are bump-allocated from.
+     */
+    static class Segment {
+        ByteBuffer buffer;
+        int used;
+        int liveTracks;
+    }
+
+    final int segmentBytes;
+    final File directory;
+    final ArrayDeque<Segment> free = new ArrayDeque<>();
+    Segment current;
+    int segmentsAllocated = 0;
+}
@@ -24,22 +24,42 @@ import java.util.Date;
  */
 public class Flight {
     public Flight(Date aDate, String aPilot, String aAirplane) {
+        this(aDate, aPilot, aAirplane, new ArrayFlightTrack(1000));
+    }
+    
+    /**
+     * @param aDate
+     * @param aPilot
+     * @param aAirplane
+     * @param aTrack The fixes of the flight, or null if they are not read yet.
+     */
+    public Flight(Date aDate, String aPilot, String aAirplane, FlightTrack aTrack) {
         date = aDate;
         pilot = aPilot;
         airplane = aAirplane;
-        fixes = new ArrayList<>(1000);
+        track = aTrack;
     }
     
     public void addFix(FlightFix fix) {
-        fixes.add(fix);
+        track.add(fix.pos.getLatitude(), fix.pos.getLongitude(), fix.alt, fix.time == null ? 0 : fix.time.getTime());
     }
     
+    /**
+     * Builds a FlightFix view of the specified fix. The fixes themselves are stored
+     * in the track; changes to the returned object are not written back.
+     * @param i
+     * @return 
+     */
     public FlightFix fix(int i) {
-        return fixes.get(i);
+        return track.fix(i);
     }
     
     public int numFixes() {
-        return fixes.size();
+        return track.size();
+    }
+    
+    public FlightTrack getTrack() {
+        return track;
     }
     
     int fixesPerMinute = -1;
@@ -49,27 +69,21 @@ public class Flight {
             return fixesPerMinute;
         }
         
-        if(fixes.size() < 21) {
+        if(track.size() < 21) {
             System.err.println("getFixesPerMinute - Not enough fixes given.");
         }
         
         // Compute this by taking the average time distance between the mid-point fix and 10+ that.
-        int midFix = fixes.size() / 2;
-        Date start = fixes.get(midFix).time;
-        Date end = fixes.get(midFix + 10).time;
-        double gap = (double)(end.getTime() - start.getTime()) / 1000. / 60.;
+        int midFix = track.size() / 2;
+        long start = track.time(midFix);
+        long end = track.time(midFix + 10);
+        double gap = (double)(end - start) / 1000. / 60.;
         fixesPerMinute = (int)(10. / gap);
         return fixesPerMinute;
     }
     
-    private boolean checkThermalRateRequirements(int startFixIndex) {
-        FlightFix fixA = fixes.get(startFixIndex);
-        FlightFix fixMinuteAfterA = fixes.get(startFixIndex + getFixesPerMinute());
-        double interfixSpeed = fixMinuteAfterA.getSpeedSince(fixA);
-        double altGap = fixMinuteAfterA.alt - fixA.alt;
-        return ((interfixSpeed < Configuration.getConfig().MaxSpeedInThermal) &&
-                (altGap > Configuration.getConfig().MinThermalClimbRate));
-    }
+    // Detectors reuse their buffers, so keep one per ingest thread.
+    static final ThreadLocal<ThermalDetector> detector = ThreadLocal.withInitial(ThermalDetector::new);
     
     public void computeThermalFixes() {
         if(thermals != null) {
@@ -78,36 +92,13 @@ public class Flight {
             thermals = new ArrayList<>();
         }
         
-        ArrayList<FlightFix> thermalFixes = new ArrayList<>(20);
-        for(int i = 0; i < (fixes.size() - getFixesPerMinute()); i++) {
-            // A thermal is detected by finding a subset of contiguous fixes that meets these requirements:
-            // 1) At least 1 minute long.
-            // 2) A maximum speed for any segment of the subset as defined in Configuration.MaxSpeedInThermal which is never exceeded during a 1-minute period. 
-            // 3) A climb of at least Configuration.MinThermalClimbDistance.
-            // 4) A climb rate that never falls below Configuration.MinThermalClimbRate over a 1-minute period.
-            // An assumption can be made that the periodicity of the fixes is regular - e.g. the algorithm should find how many fixes consist of a 1-minute period and
-            // use that for the rest of the thermal finding procedure.
-            
-            // Check that conditions (2) and (4) apply for the fix 1 minute in advance of the current one.
-            if(checkThermalRateRequirements(i)) {
-                // We've satisfied everything but requirement 2. Keep searching forward from i until reqs 2 or 4 fail.
-                int thermalStartIndex = i++;
-                FlightFix startFix = fixes.get(thermalStartIndex);
-                while(i < (fixes.size() - getFixesPerMinute()) && checkThermalRateRequirements(i)) {
-                    i++;
-                }
-                if(i >= (fixes.size() - getFixesPerMinute())) {
-                    break;
-                }
-                int thermalEndIndex = i + getFixesPerMinute();
-                FlightFix endFix = fixes.get(thermalEndIndex);
-                double altGain = endFix.alt - startFix.alt;
-                if(altGain > Configuration.getConfig().MinThermalClimbDistance) {
-                    // We've got a thermal!
-                    Logger.log("Thermal found for " + pilot +  "-" + airplane + " starting at " + startFix.toString() + " ending at " + endFix.toString());
-                    thermals.add(new Thermal(this, new ArrayList<>(fixes.subList(thermalStartIndex, thermalEndIndex))));
-                }
-            }
+        ThermalDetector thermalDetector = detector.get();
+        int count = thermalDetector.detect(track, getFixesPerMinute());
+        for(int i = 0; i < count; i++) {
+            int thermalStartIndex = thermalDetector.getThermalStart(i);
+            int thermalEndIndex = thermalDetector.getThermalEnd(i);
+            Logger.log("Thermal found for " + pilot +  "-" + airplane + " starting at " + fix(thermalStartIndex).toString() + " ending at " + fix(thermalEndIndex).toString());
+            thermals.add(new Thermal(this, thermalStartIndex, thermalEndIndex));
         }
     }
     
@@ -122,7 +113,7 @@ public class Flight {
     Date date;
     String pilot;
     String airplane;    
-    ArrayList<FlightFix> fixes;
+    FlightTrack track;
     ArrayList<Thermal> thermals;
 }
 
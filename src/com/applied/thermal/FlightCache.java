@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Caches parsed flights in a directory, so that unchanged KML files do not need
+ * to be parsed again.
+ *
+ * Every KML file has one cache file, named after a hash of its path. The cache
+ * file records the size, modification time and SHA-256 hash of the KML it was
+ * built from. If the size and modification time still match, the cache is used
+ * as is; otherwise the KML is hashed, and the cache is only used if the content
+ * is unchanged.
+ *
+ * Fixes are stored column by column. With compression, each column is scaled to
+ * integers and stored as zig-zag varint deltas from the previous fix, provided
+ * that every value of the column survives the round trip exactly; OLC exports
+ * only carry a few decimals, so this is nearly always the case. Otherwise the
+ * column is stored as raw doubles. Either way a cached flight is identical to the
+ * parsed one. Cache files are read through a memory mapping.
+ * @author James Betker
+ */
+public class FlightCache {
+    static final int MAGIC = 0x54464331; // "TFC1"
+    static final int VERSION = 2;
+    static final int MODIFIED_OFFSET = 16;
+    static final byte RAW = 0;
+    static final byte SCALED_DELTA = 1;
+    // Scales tried for the scaled encoding of each column: 1e-7 degrees and 1cm.
+    static final double DEGREE_SCALE = 1e7;
+    static final double ALTITUDE_SCALE = 100;
+
+    public FlightCache(File aDirectory, boolean aCompress) {
+        directory = aDirectory;
+        compress = aCompress;
+        directory.mkdirs();
+    }
+
+    /**
+     * @param aKml
+     * @return The cached flight for aKml, or null if there is no valid one.
+     */
+    public Flight get(File aKml) {
+        File cacheFile = cacheFileFor(aKml);
+        if(!cacheFile.isFile()) {
+            return null;
+        }
+        try(FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long size = buffer.getLong();
+            long modified = buffer.getLong();
+            byte[] hash = new byte[32];
+            buffer.get(hash);
+            if(size != aKml.length()) {
+                return null;
+            }
+            if(modified != aKml.lastModified()) {
+                if(!Arrays.equals(hash, hash(aKml))) {
+                    return null;
+                }
+                // Only touched; remember the new time so the file is not hashed again.
+                try(FileChannel writable = FileChannel.open(cacheFile.toPath(), StandardOpenOption.WRITE)) {
+                    ByteBuffer time = ByteBuffer.allocate(8).putLong(0, aKml.lastModified());
+                    writable.write(time, MODIFIED_OFFSET);
+                }
+            }
+            return readFlight(buffer);
+        } catch(IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Logger.err("Ignoring unreadable flight cache " + cacheFile.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores aFlight as the parsed form of aKml. The cache file is replaced
+     * atomically, so concurrent readers never see a partial file.
+     * @param aKml
+     * @param aFlight
+     */
+    public void put(File aKml, Flight aFlight) {
+        File cacheFile = cacheFileFor(aKml);
+        try {
+            long size = aKml.length();
+            long modified = aKml.lastModified();
+            byte[] hash = hash(aKml);
+            byte[] pilot = bytes(aFlight.pilot);
+            byte[] airplane = bytes(aFlight.airplane);
+            FlightTrack track = aFlight.track;
+            int count = track.size();
+
+            // Worst case: raw columns, plus the varint overhead of the scaled encoding.
+            ByteBuffer buffer = ByteBuffer.allocate(128 + (pilot == null ? 0 : pilot.length) + (airplane == null ? 0 : airplane.length) + count * 4 * 10);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putLong(size).putLong(modified).put(hash);
+            buffer.putLong(aFlight.date == null ? Long.MIN_VALUE : aFlight.date.getTime());
+            putString(buffer, pilot);
+            putString(buffer, airplane);
+            buffer.putInt(count);
+            putColumn(buffer, track::lat, count, DEGREE_SCALE);
+            putColumn(buffer, track::lon, count, DEGREE_SCALE);
+            putColumn(buffer, track::alt, count, ALTITUDE_SCALE);
+            putTimes(buffer, track, count);
+            buffer.flip();
+
+            File temp = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+            try(FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            Logger.err("Unable to cache " + aKml.getName() + ": " + e);
+        }
+    }
+
+    /**
+     * Reads a flight, decoding its fixes straight into the fix arena if there is
+     * one, or into arrays of their own otherwise.
+     */
+    private Flight readFlight(ByteBuffer aBuffer) {
+        long date = aBuffer.getLong();
+        String pilot = getString(aBuffer);
+        String airplane = getString(aBuffer);
+        int count = aBuffer.getInt();
+        if(count < 0) {
+            throw new IllegalArgumentException("Negative fix count " + count);
+        }
+        FlightTrack track;
+        FixArena arena = Configuration.getConfig().getFixArena();
+        if(arena != null) {
+            ArenaFlightTrack arenaTrack = arena.reserve(count);
+            try {
+                getColumn(aBuffer, count, arenaTrack::setLat);
+                getColumn(aBuffer, count, arenaTrack::setLon);
+                getColumn(aBuffer, count, arenaTrack::setAlt);
+                getTimes(aBuffer, count, arenaTrack);
+            } catch(RuntimeException e) {
+                arenaTrack.release();
+                throw e;
+            }
+            track = arenaTrack;
+        } else {
+            double[] lat = new double[count];
+            double[] lon = new double[count];
+            double[] alt = new double[count];
+            getColumn(aBuffer, count, (i, aValue) -> lat[i] = aValue);
+            getColumn(aBuffer, count, (i, aValue) -> lon[i] = aValue);
+            getColumn(aBuffer, count, (i, aValue) -> alt[i] = aValue);
+            track = new ArrayFlightTrack(lat, lon, alt, new long[count], count);
+            getTimes(aBuffer, count, track);
+        }
+        return new Flight(date == Long.MIN_VALUE ? null : new Date(date), pilot, airplane, track);
+    }
+
+    /**
+     * Writes a column scaled by aScale and delta encoded if compression is on and
+     * every value survives the round trip, or as raw doubles otherwise.
+     */
+    private void putColumn(ByteBuffer aBuffer, IntToDoubleFunction aValues, int aCount, double aScale) {
+        if(compress && isExactlyScalable(aValues, aCount, aScale)) {
+            aBuffer.put(SCALED_DELTA).putDouble(aScale);
+            long previous = 0;
+            for(int i = 0; i < aCount; i++) {
+                long scaled = Math.round(aValues.applyAsDouble(i) * aScale);
+                putVarLong(aBuffer, zigZagEncode(scaled - previous));
+                previous = scaled;
+            }
+        } else {
+            aBuffer.put(RAW);
+            for(int i = 0; i < aCount; i++) {
+                aBuffer.putDouble(aValues.applyAsDouble(i));
+            }
+        }
+    }
+
+    /**
+     * Receives the values of a column as it is decoded.
+     */
+    private interface ColumnWriter {
+        void set(int i, double aValue);
+    }
+
+    private static void getColumn(ByteBuffer aBuffer, int aCount, ColumnWriter aValues) {
+        byte encoding = aBuffer.get();
+        if(encoding == SCALED_DELTA) {
+            double scale = aBuffer.getDouble();
+            long scaled = 0;
+            for(int i = 0; i < aCount; i++) {
+                scaled += zigZagDecode(getVarLong(aBuffer));
+                aValues.set(i, scaled / scale);
+            }
+        } else if(encoding == RAW) {
+            for(int i = 0; i < aCount; i++) {
+                aValues.set(i, aBuffer.getDouble());
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown column encoding " + encoding);
+        }
+    }
+
+    private static boolean isExactlyScalable(IntToDoubleFunction aValues, int aCount, double aScale) {
+        for(int i = 0; i < aCount; i++) {
+            double value = aValues.applyAsDouble(i);
+            long scaled = Math.round(value * aScale);
+            if(Math.abs(scaled) > 1L << 52 || Double.compare(scaled / aScale, value) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Times are always delta encoded; fixes are evenly spaced, so the deltas are small.
+     */
+    private static void putTimes(ByteBuffer aBuffer, FlightTrack aTrack, int aCount) {
+        long previous = 0;
+        for(int i = 0; i < aCount; i++) {
+            putVarLong(aBuffer, zigZagEncode(aTrack.time(i) - previous));
+            previous = aTrack.time(i);
+        }
+    }
+
+    private static void getTimes(ByteBuffer aBuffer, int aCount, FlightTrack aTrack) {
+        long time = 0;
+        for(int i = 0; i < aCount; i++) {
+            time += zigZagDecode(getVarLong(aBuffer));
+            aTrack.setTime(i, time);
+        }
+    }
+
+    static long zigZagEncode(long aValue) {
+        return (aValue << 1) ^ (aValue >> 63);
+    }
+
+    static long zigZagDecode(long aValue) {
+        return (aValue >>> 1) ^ -(aValue & 1);
+    }
+
+    static void putVarLong(ByteBuffer aBuffer, long aValue) {
+        while((aValue & ~0x7fL) != 0) {
+            aBuffer.put((byte)((aValue & 0x7f) | 0x80));
+            aValue >>>= 7;
+        }
+        aBuffer.put((byte)aValue);
+    }
+
+    static long getVarLong(ByteBuffer aBuffer) {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = aBuffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static byte[] bytes(String aString) {
+        return aString == null ? null : aString.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer aBuffer, byte[] aBytes) {
+        if(aBytes == null) {
+            aBuffer.putInt(-1);
+        } else {
+            aBuffer.putInt(aBytes.length).put(aBytes);
+        }
+    }
+
+    private static String getString(ByteBuffer aBuffer) {
+        int length = aBuffer.getInt();
+        if(length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        aBuffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private File cacheFileFor(File aKml) {
+        return new File(directory, pathKey(aKml) + ".flight");
+    }
+
+    /**
+     * @param aFile
+     * @return A file name safe key derived from the absolute path of aFile.
+     */
+    static String pathKey(File aFile) {
+        return toHex(sha256().digest(aFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8)), 12);
+    }
+
+    static String toHex(byte[] aBytes, int aCount) {
+        StringBuilder hex = new StringBuilder();
+        for(int i = 0; i < aCount; i++) {
+            hex.append(String.format("%02x", aBytes[i]));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param aFile
+     * @return The SHA-256 hash of the contents of aFile.
+     * @throws IOException
+     */
+    static byte[] hash(File aFile) throws IOException {
+        MessageDigest digest = sha256();
+        try(FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            while(channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    final File directory;
+    final boolean compress;
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the flights to process by date range, pilot, glider and the area the
+ * track passes through.
+ *
+ * Flights are checked against their OLCKmlHeader, before they are parsed. The
+ * bounds in the header are estimated from the one-minute fixes and widened, so
+ * a flight which only passes close to the bounding box may be accepted. Files
+ * which cannot be prescanned are checked with accepts(Flight) once they are
+ * parsed.
+ * @author James Betker
+ */
+public class FlightFilter {
+
+    /**
+     * @param aConfig
+     * @return The filter described by the Filter* fields of aConfig, or null if
+     *         none of them are set.
+     */
+    public static FlightFilter fromConfig(Configuration aConfig) {
+        if(aConfig.FilterFromDate == null && aConfig.FilterToDate == null && aConfig.FilterPilot == null
+                && aConfig.FilterGliderPattern == null && aConfig.FilterBoundingBox == null) {
+            return null;
+        }
+        FlightFilter filter = new FlightFilter();
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("dd/MM/yyyy");
+            if(aConfig.FilterFromDate != null) {
+                filter.from = format.parse(aConfig.FilterFromDate);
+            }
+            if(aConfig.FilterToDate != null) {
+                filter.to = format.parse(aConfig.FilterToDate);
+            }
+        } catch(ParseException e) {
+            throw new IllegalArgumentException("Filter dates must be given as dd/MM/yyyy", e);
+        }
+        filter.pilot = aConfig.FilterPilot;
+        if(aConfig.FilterGliderPattern != null) {
+            filter.glider = Pattern.compile(aConfig.FilterGliderPattern, Pattern.CASE_INSENSITIVE);
+        }
+        if(aConfig.FilterBoundingBox != null) {
+            if(aConfig.FilterBoundingBox.length != 4) {
+                throw new IllegalArgumentException("FilterBoundingBox must be given as { south, west, north, east }");
+            }
+            filter.south = aConfig.FilterBoundingBox[0];
+            filter.west = aConfig.FilterBoundingBox[1];
+            filter.north = aConfig.FilterBoundingBox[2];
+            filter.east = aConfig.FilterBoundingBox[3];
+            filter.hasBounds = true;
+        }
+        return filter;
+    }
+
+    /**
+     * @return Whether accepts(OLCKmlHeader) needs the bounds of the track.
+     */
+    public boolean needsBounds() {
+        return hasBounds;
+    }
+
+    /**
+     * @param aHeader
+     * @return False if the flight described by aHeader cannot pass the filter.
+     */
+    public boolean accepts(OLCKmlHeader aHeader) {
+        if(!acceptsHeader(aHeader.date, aHeader.pilot, aHeader.airplane)) {
+            return false;
+        }
+        return !hasBounds || !aHeader.hasBounds ||
+               (aHeader.south <= north && aHeader.north >= south && aHeader.west <= east && aHeader.east >= west);
+    }
+
+    /**
+     * @param aFlight
+     * @return Whether aFlight passes the filter; with a bounding box, at least one
+     *         of its fixes must lie within it.
+     */
+    public boolean accepts(Flight aFlight) {
+        if(!acceptsHeader(aFlight.date, aFlight.pilot, aFlight.airplane)) {
+            return false;
+        }
+        if(!hasBounds) {
+            return true;
+        }
+        FlightTrack track = aFlight.track;
+        for(int i = 0; i < track.size(); i++) {
+            double lat = track.lat(i), lon = track.lon(i);
+            if(lat >= south && lat <= north && lon >= west && lon <= east) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acceptsHeader(Date aDate, String aPilot, String aAirplane) {
+        if(from != null && (aDate == null || aDate.before(from))) {
+            return false;
+        }
+        if(to != null && (aDate == null || aDate.after(to))) {
+            return false;
+        }
+        if(pilot != null && !pilot.equalsIgnoreCase(aPilot)) {
+            return false;
+        }
+        return glider == null || (aAirplane != null && glider.matcher(aAirplane).find());
+    }
+
+    Date from;
+    Date to;
+    String pilot;
+    Pattern glider;
+    boolean hasBounds = false;
+    double north, south, east, west;
+}
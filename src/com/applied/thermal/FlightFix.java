@@ -40,9 +40,10 @@ public class FlightFix {
         return LatLngTool.distance(pos, otherFix.pos, LengthUnit.METER) / ((double)(time.getTime() - otherFix.time.getTime()) / 1000.);
     }
     
-    static SimpleDateFormat format = new SimpleDateFormat("H:mm:ss");
+    // SimpleDateFormat is not thread safe and fixes are logged from ingest workers.
+    static final ThreadLocal<SimpleDateFormat> format = ThreadLocal.withInitial(() -> new SimpleDateFormat("H:mm:ss"));
     
     public String toString() { 
-        return format.format(time);
+        return format.get().format(time);
     }
 }
\ No newline at end of file
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.javadocmd.simplelatlng.LatLng;
+import com.javadocmd.simplelatlng.LatLngTool;
+import com.javadocmd.simplelatlng.util.LatLngConfig;
+import com.javadocmd.simplelatlng.util.LengthUnit;
+import java.util.Date;
+
+/**
+ * The fixes of a flight, stored column by column rather than as one FlightFix
+ * object (with its LatLng and Date) per fix. Fixes are read through accessors by
+ * index, so that implementations are free to store them as they see fit:
+ * ArrayFlightTrack keeps them in primitive arrays on the heap, ArenaFlightTrack
+ * in a shared off-heap FixArena and QuantizedFlightTrack in fixed point.
+ * @author James Betker
+ */
+public abstract class FlightTrack {
+    // The earth radius LatLngTool.distance uses.
+    static final double EARTH_RADIUS_METERS = LatLngConfig.getEarthRadius(LengthUnit.METER);
+
+    /**
+     * Appends a fix to the track.
+     * @param aLat
+     * @param aLon
+     * @param aAlt
+     * @param aEpochMillis
+     */
+    public abstract void add(double aLat, double aLon, double aAlt, long aEpochMillis);
+
+    /**
+     * Appends aCount fixes without timestamps.
+     * @param aLat
+     * @param aLon
+     * @param aAlt
+     * @param aCount
+     */
+    public abstract void addAll(double[] aLat, double[] aLon, double[] aAlt, int aCount);
+
+    /**
+     * Releases any unused capacity.
+     */
+    public void trimToSize() {
+    }
+
+    /**
+     * @param aStart
+     * @param aEnd
+     * @return A new track on the heap holding a copy of the fixes [aStart, aEnd) of this one.
+     */
+    public FlightTrack slice(int aStart, int aEnd) {
+        ArrayFlightTrack slice = new ArrayFlightTrack(aEnd - aStart);
+        for(int i = aStart; i < aEnd; i++) {
+            slice.add(lat(i), lon(i), alt(i), time(i));
+        }
+        return slice;
+    }
+
+    /**
+     * @param aTrack
+     * @return aTrack as a QuantizedFlightTrack if Configuration.QuantizeTracks is
+     *         set and its fixes allow it, aTrack itself otherwise.
+     */
+    public static FlightTrack compact(FlightTrack aTrack) {
+        if(Configuration.getConfig().QuantizeTracks && !(aTrack instanceof QuantizedFlightTrack)) {
+            QuantizedFlightTrack quantized = QuantizedFlightTrack.encode(aTrack, 0, aTrack.size());
+            if(quantized != null) {
+                return quantized;
+            }
+        }
+        return aTrack;
+    }
+
+    public abstract int size();
+
+    public abstract double lat(int i);
+
+    public abstract double lon(int i);
+
+    public abstract double alt(int i);
+
+    public abstract long time(int i);
+
+    public abstract void setTime(int i, long aEpochMillis);
+
+    public LatLng position(int i) {
+        return new LatLng(lat(i), lon(i));
+    }
+
+    /**
+     * Computes the speed between two fixes the same way FlightFix.getSpeedSince
+     * does: the distance between them divided by the time it took.
+     * @param aFrom
+     * @param aTo
+     * @return Speed in meters / second.
+     */
+    public double getSpeed(int aFrom, int aTo) {
+        return getDistance(aFrom, aTo) / ((double)(time(aTo) - time(aFrom)) / 1000.);
+    }
+
+    /**
+     * Computes the distance between two fixes exactly as LatLngTool.distance does
+     * for their positions, but without creating LatLngs.
+     * @param aFrom
+     * @param aTo
+     * @return Distance in meters.
+     */
+    public double getDistance(int aFrom, int aTo) {
+        double fromLat = lat(aFrom), fromLon = lon(aFrom), toLat = lat(aTo), toLon = lon(aTo);
+        if(!isPlain(fromLat, fromLon) || !isPlain(toLat, toLon)) {
+            return LatLngTool.distance(position(aTo), position(aFrom), LengthUnit.METER);
+        }
+        double toLatRadians = Math.toRadians(microDegrees(toLat));
+        double fromLatRadians = Math.toRadians(microDegrees(fromLat));
+        return haversine(toLatRadians, Math.cos(toLatRadians), microDegrees(toLon), fromLatRadians, Math.cos(fromLatRadians), microDegrees(fromLon));
+    }
+
+    /**
+     * @return Whether LatLng keeps aLat, aLon as they are, rather than clamping
+     *         the latitude or wrapping the longitude.
+     */
+    static boolean isPlain(double aLat, double aLon) {
+        return Math.abs(aLat) < 90 && Math.abs(aLon) <= 180;
+    }
+
+    /**
+     * @return aDegrees truncated to the millionths of a degree that LatLng keeps.
+     */
+    static double microDegrees(double aDegrees) {
+        return (long)(aDegrees / 1e-6) * 1e-6;
+    }
+
+    /**
+     * The haversine distance with the same operations, in the same order, as
+     * LatLngTool.distance(point1, point2), so that results are identical. The
+     * positions must be in micro degrees, see microDegrees().
+     * @param aLat1Radians
+     * @param aCosLat1 The cosine of aLat1Radians.
+     * @param aLon1 In degrees.
+     * @param aLat2Radians
+     * @param aCosLat2 The cosine of aLat2Radians.
+     * @param aLon2 In degrees.
+     * @return Distance in meters.
+     */
+    static double haversine(double aLat1Radians, double aCosLat1, double aLon1, double aLat2Radians, double aCosLat2, double aLon2) {
+        double sinHalfLat = Math.sin(Math.abs(aLat2Radians - aLat1Radians) / 2);
+        double sinHalfLon = Math.sin(Math.abs(Math.toRadians(aLon2 - aLon1)) / 2);
+        double a = sinHalfLat * sinHalfLat + aCosLat1 * aCosLat2 * sinHalfLon * sinHalfLon;
+        return 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a)) * EARTH_RADIUS_METERS;
+    }
+
+    /**
+     * Projects the track onto a local plane centered on it. The projection is
+     * computed once and reused until fixes are added.
+     * @return
+     */
+    public LocalProjection project() {
+        if(projection == null) {
+            final int size = size();
+            LocalProjection newProjection = LocalProjection.forTrack(this);
+            east = new double[size];
+            north = new double[size];
+            for(int i = 0; i < size; i++) {
+                east[i] = newProjection.east(lon(i));
+                north[i] = newProjection.north(lat(i));
+            }
+            projection = newProjection;
+        }
+        return projection;
+    }
+
+    /**
+     * Builds a FlightFix for the specified index. The fix is a copy; changing it
+     * does not change the track.
+     * @param i
+     * @return
+     */
+    public FlightFix fix(int i) {
+        FlightFix fix = new FlightFix();
+        fix.pos = position(i);
+        fix.alt = alt(i);
+        fix.time = new Date(time(i));
+        return fix;
+    }
+    
+    // Only populated by project(), and cleared by implementations when fixes are added.
+    LocalProjection projection;
+    double[] east;
+    double[] north;
+}
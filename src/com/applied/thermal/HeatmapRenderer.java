@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Rasterizes LiftAggregates into a pyramid of PNG tiles, and writes a KML which
+ * shows them as GroundOverlays, each with a Region so that Google Earth only
+ * loads the tiles of the zoom level and area in view.
+ *
+ * GroundOverlays are stretched linearly in latitude and longitude, so the tiles
+ * are too: at zoom z the world is split into 2^(z+1) columns and 2^z rows of
+ * 180 / 2^z degrees, x counting east from 180W and y south from 90N, and each is
+ * written to z/x/y.png. Only tiles holding at least one cell are rendered.
+ *
+ * Each zoom level is drawn from the finest precision of the aggregates whose
+ * cells are still at least a pixel wide. Where several cells fall into the same
+ * pixel, it shows the highest value. Tiles are rendered in parallel on a
+ * ForkJoinPool.
+ * @author James Betker
+ */
+public class HeatmapRenderer {
+    static final int TILE_PIXELS = 256;
+    // Tiles smaller than this on screen are replaced by their parent.
+    static final int MIN_LOD_PIXELS = 128;
+    // Tiles larger than this on screen are replaced by their children.
+    static final int MAX_LOD_PIXELS = 512;
+    // Tiles rendered by one task of the fork-join pool without splitting further.
+    static final int TILES_PER_TASK = 4;
+
+    /**
+     * The value of a cell which is mapped to color.
+     */
+    public enum Value {
+        Density,        //! The number of thermals, on a log scale relative to the busiest cell of the precision.
+        MeanClimbRate   //! The mean climb rate, from 0 to Configuration.HeatmapMaxClimbRate.
+    }
+
+    /**
+     * @param aAggregates
+     * @param aValue
+     * @param aMinZoom The coarsest zoom level to render.
+     * @param aMaxZoom The finest zoom level to render.
+     * @param aMaxClimbRate With Value.MeanClimbRate, the climb rate drawn in the hottest color.
+     */
+    public HeatmapRenderer(LiftAggregates aAggregates, Value aValue, int aMinZoom, int aMaxZoom, double aMaxClimbRate) {
+        aggregates = aAggregates;
+        value = aValue;
+        minZoom = aMinZoom;
+        maxZoom = aMaxZoom;
+        maxClimbRate = aMaxClimbRate;
+    }
+
+    /**
+     * Renders every zoom level into aDirectory.
+     * @param aDirectory
+     * @param aPool
+     * @return The number of tiles written.
+     */
+    public int render(File aDirectory, ForkJoinPool aPool) {
+        tiles.clear();
+        for(int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            int precision = precisionFor(zoom);
+            if(precision == 0) {
+                continue;
+            }
+            List<Tile> level = tilesOf(zoom, aggregates.getKeys(precision));
+            aPool.invoke(new RenderTask(level, 0, level.size(), aDirectory));
+            tiles.addAll(level);
+        }
+        return tiles.size();
+    }
+
+    /**
+     * Writes a KML with a GroundOverlay for every tile written by render().
+     * @param aFile
+     * @param aTileHref The location of the tile directory relative to aFile, or
+     *                  an empty string if it is the same directory.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void writeKml(File aFile, String aTileHref) throws IOException, XMLStreamException {
+        String prefix = aTileHref.isEmpty() || aTileHref.endsWith("/") ? aTileHref : aTileHref + "/";
+        try(StreamingKmlWriter writer = new StreamingKmlWriter(aFile, "Lift " + value)) {
+            int zoom = -1;
+            for(Tile tile : tiles) {
+                if(tile.zoom != zoom) {
+                    if(zoom != -1) {
+                        writer.endFolder();
+                    }
+                    zoom = tile.zoom;
+                    writer.startFolder("Zoom " + zoom, false);
+                }
+                double size = 180. / (1 << tile.zoom);
+                double west = -180 + tile.x * size;
+                double north = 90 - tile.y * size;
+                // The coarsest level is drawn however small it gets, the finest however large.
+                int minLod = tile.zoom == minZoom ? 0 : MIN_LOD_PIXELS;
+                int maxLod = tile.zoom == maxZoom ? -1 : MAX_LOD_PIXELS;
+                writer.writeGroundOverlay(tile.zoom + "/" + tile.x + "/" + tile.y, prefix + tile.path(), tile.zoom,
+                                          north, north - size, west + size, west, minLod, maxLod);
+            }
+            if(zoom != -1) {
+                writer.endFolder();
+            }
+        }
+    }
+
+    /**
+     * @return The finest precision of the aggregates whose cells are at least a
+     *         pixel wide at aZoom, the coarsest if none are, or 0 if there are no
+     *         precisions.
+     */
+    int precisionFor(int aZoom) {
+        int[] precisions = aggregates.getPrecisions();
+        Arrays.sort(precisions);
+        if(precisions.length == 0) {
+            return 0;
+        }
+        double degreesPerPixel = 180. / (1 << aZoom) / TILE_PIXELS;
+        int chosen = precisions[0];
+        for(int precision : precisions) {
+            double[] bounds = LiftAggregates.bounds(LiftAggregates.key(0, 0, precision));
+            if(bounds[3] - bounds[1] >= degreesPerPixel) {
+                chosen = precision;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @return The tiles of aZoom touched by the cells of aKeys, each with the
+     *         cells which touch it, ordered by x and y.
+     */
+    private static List<Tile> tilesOf(int aZoom, long[] aKeys) {
+        final double size = 180. / (1 << aZoom);
+        final int columns = 2 << aZoom, rows = 1 << aZoom;
+        Map<Long, Tile> byPosition = new HashMap<>();
+        for(long key : aKeys) {
+            double[] bounds = LiftAggregates.bounds(key);
+            int firstX = Math.max(0, (int)Math.floor((bounds[1] + 180) / size));
+            int lastX = Math.min(columns - 1, (int)Math.ceil((bounds[3] + 180) / size) - 1);
+            int firstY = Math.max(0, (int)Math.floor((90 - bounds[2]) / size));
+            int lastY = Math.min(rows - 1, (int)Math.ceil((90 - bounds[0]) / size) - 1);
+            for(int x = firstX; x <= lastX; x++) {
+                for(int y = firstY; y <= lastY; y++) {
+                    long position = ((long)x << 32) | y;
+                    Tile tile = byPosition.get(position);
+                    if(tile == null) {
+                        tile = new Tile(aZoom, x, y);
+                        byPosition.put(position, tile);
+                    }
+                    tile.cells.add(key);
+                }
+            }
+        }
+        List<Tile> tiles = new ArrayList<>(byPosition.values());
+        tiles.sort((a, b) -> a.x != b.x ? Integer.compare(a.x, b.x) : Integer.compare(a.y, b.y));
+        return tiles;
+    }
+
+    /**
+     * Draws aTile and writes it below aDirectory.
+     */
+    private void renderTile(Tile aTile, File aDirectory, double aMaxCount) {
+        final double size = 180. / (1 << aTile.zoom);
+        final double west = -180 + aTile.x * size;
+        final double north = 90 - aTile.y * size;
+        final double pixelsPerDegree = TILE_PIXELS / size;
+        float[] values = new float[TILE_PIXELS * TILE_PIXELS];
+        Arrays.fill(values, Float.NaN);
+        for(long key : aTile.cells) {
+            double[] bounds = LiftAggregates.bounds(key);
+            float cellValue = (float)normalize(aggregates.getCell(key), aMaxCount);
+            int left = clampPixel((int)Math.floor((bounds[1] - west) * pixelsPerDegree));
+            int top = clampPixel((int)Math.floor((north - bounds[2]) * pixelsPerDegree));
+            // Every cell covers at least one pixel.
+            int right = Math.max(left + 1, clampPixel((int)Math.ceil((bounds[3] - west) * pixelsPerDegree)));
+            int bottom = Math.max(top + 1, clampPixel((int)Math.ceil((north - bounds[0]) * pixelsPerDegree)));
+            for(int y = top; y < bottom && y < TILE_PIXELS; y++) {
+                for(int x = left; x < right && x < TILE_PIXELS; x++) {
+                    int pixel = y * TILE_PIXELS + x;
+                    if(!(values[pixel] >= cellValue)) {
+                        values[pixel] = cellValue;
+                    }
+                }
+            }
+        }
+
+        BufferedImage image = new BufferedImage(TILE_PIXELS, TILE_PIXELS, BufferedImage.TYPE_INT_ARGB);
+        int[] argb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        for(int i = 0; i < values.length; i++) {
+            argb[i] = Float.isNaN(values[i]) ? 0 : color(values[i]);
+        }
+        File file = new File(aDirectory, aTile.path());
+        file.getParentFile().mkdirs();
+        try {
+            ImageIO.write(image, "png", file);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int clampPixel(int aPixel) {
+        return Math.max(0, Math.min(TILE_PIXELS, aPixel));
+    }
+
+    /**
+     * @return The value of aCell from 0 to 1.
+     */
+    private double normalize(LiftAggregates.Cell aCell, double aMaxCount) {
+        double normalized;
+        if(value == Value.Density) {
+            normalized = Math.log1p(aCell.getCount()) / Math.log1p(aMaxCount);
+        } else {
+            normalized = aCell.getMeanClimbRate() / maxClimbRate;
+        }
+        return Math.max(0, Math.min(1, normalized));
+    }
+
+    /**
+     * @return Blue for 0 through green and yellow to red for 1, more opaque the
+     *         higher aValue is.
+     */
+    static int color(double aValue) {
+        int rgb = Color.HSBtoRGB((float)(2. / 3. * (1 - aValue)), 1, 1) & 0xffffff;
+        int alpha = (int)(0x60 + 0x90 * aValue);
+        return (alpha << 24) | rgb;
+    }
+
+    /**
+     * Renders [start, end) of a zoom level's tiles, splitting the range in halves
+     * until it is small enough.
+     */
+    class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        RenderTask(List<Tile> aTiles, int aStart, int aEnd, File aDirectory) {
+            levelTiles = aTiles;
+            start = aStart;
+            end = aEnd;
+            directory = aDirectory;
+            long busiest = 1;
+            for(Tile tile : aTiles) {
+                for(long key : tile.cells) {
+                    busiest = Math.max(busiest, aggregates.getCell(key).getCount());
+                }
+            }
+            maxCount = busiest;
+        }
+
+        RenderTask(RenderTask aParent, int aStart, int aEnd) {
+            levelTiles = aParent.levelTiles;
+            start = aStart;
+            end = aEnd;
+            directory = aParent.directory;
+            maxCount = aParent.maxCount;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - start <= TILES_PER_TASK) {
+                for(int i = start; i < end; i++) {
+                    renderTile(levelTiles.get(i), directory, maxCount);
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new RenderTask(this, start, middle), new RenderTask(this, middle, end));
+        }
+
+        final List<Tile> levelTiles;
+        final int start;
+        final int end;
+        final File directory;
+        // The busiest cell of the zoom level, which Value.Density is relative to.
+        final double maxCount;
+    }
+
+    /**
+     * A tile of the pyramid and the keys of the cells drawn into it.
+     */
+    static class Tile {
+        Tile(int aZoom, int aX, int aY) {
+            zoom = aZoom;
+            x = aX;
+            y = aY;
+        }
+
+        String path() {
+            return zoom + "/" + x + "/" + y + ".png";
+        }
+
+        final int zoom;
+        final int x;
+        final int y;
+        final List<Long> cells = new ArrayList<>();
+    }
+
+    final LiftAggregates aggregates;
+    final Value value;
+    final int minZoom;
+    final int maxZoom;
+    final double maxClimbRate;
+    // The tiles written by the last render(), by zoom level.
+    final List<Tile> tiles = new ArrayList<>();
+}
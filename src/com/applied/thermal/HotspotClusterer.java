@@ -0,0 +1,446 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.javadocmd.simplelatlng.LatLng;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Groups thermals from all flights into hotspots with DBSCAN: thermals with at
+ * least minThermals thermals (themselves included) within radius of them are
+ * core thermals, core thermals within radius of each other belong to the same
+ * hotspot, and other thermals join the hotspot of a core thermal within radius
+ * of them, if there is one.
+ *
+ * Rather than searching for the neighbours of every thermal, thermals are
+ * hashed into a grid of cells whose diagonal is the radius, so that all
+ * thermals in one cell are neighbours of each other:
+ * 1) Every thermal of a cell with at least minThermals thermals is core. Other
+ *    thermals count their neighbours in the cells around theirs.
+ * 2) Cells with a core thermal are joined in a union-find if any two of their
+ *    core thermals are neighbours. Each resulting set is a hotspot.
+ * 3) Thermals which are not core join the hotspot of the first core neighbour
+ *    they find.
+ * Rows of the grid are equally high; columns are as wide in degrees as the
+ * radius requires at the row's latitude. Distances are planar, as in
+ * LocalProjection. Positions across the antimeridian are not considered close.
+ * @author James Betker
+ */
+public class HotspotClusterer {
+    static final double MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    /**
+     * @param aRadius The distance in meters within which thermals are neighbours.
+     * @param aMinThermals The number of thermals within aRadius which make a
+     *                     thermal a core thermal, itself included.
+     * @param aAnchor The position of each thermal to cluster.
+     */
+    public HotspotClusterer(double aRadius, int aMinThermals, ThermalIndex.Anchor aAnchor) {
+        radius = aRadius;
+        minThermals = Math.max(aMinThermals, 1);
+        anchor = aAnchor;
+        cellHeight = aRadius / Math.sqrt(2) / LocalProjection.METERS_PER_DEGREE;
+    }
+
+    /**
+     * @param aThermals
+     * @return The hotspots among aThermals, on the most distinct days first and
+     *         then the most thermals first. Thermals in no hotspot are left out.
+     */
+    public List<Hotspot> cluster(List<Thermal> aThermals) {
+        final int count = aThermals.size();
+        lat = new double[count];
+        lon = new double[count];
+        cos = new double[count];
+        for(int i = 0; i < count; i++) {
+            Thermal thermal = aThermals.get(i);
+            LatLng position = anchor == ThermalIndex.Anchor.Start ? thermal.getFirstFix().pos : thermal.getGroundPosition();
+            lat[i] = position.getLatitude();
+            lon[i] = position.getLongitude();
+            cos[i] = Math.cos(Math.toRadians(lat[i]));
+        }
+        buildGrid();
+        boolean[] core = findCore();
+        int[] parent = joinCells(core);
+
+        // Every core thermal is in the hotspot of its cell; others in that of a core neighbour.
+        int[] cellOfCluster = new int[count];
+        Arrays.fill(cellOfCluster, -1);
+        for(int cell = 0; cell < cellStart.length - 1; cell++) {
+            for(int m = cellStart[cell]; m < cellStart[cell + 1]; m++) {
+                int thermal = members[m];
+                if(core[thermal]) {
+                    cellOfCluster[thermal] = find(parent, cell);
+                    continue;
+                }
+                search:
+                for(int neighbour : neighbours[cell]) {
+                    for(int n = cellStart[neighbour]; n < cellStart[neighbour + 1]; n++) {
+                        if(core[members[n]] && isNeighbour(thermal, members[n])) {
+                            cellOfCluster[thermal] = find(parent, neighbour);
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<Integer, Hotspot> byRoot = new HashMap<>();
+        for(int i = 0; i < count; i++) {
+            if(cellOfCluster[i] == -1) {
+                continue;
+            }
+            Hotspot hotspot = byRoot.get(cellOfCluster[i]);
+            if(hotspot == null) {
+                hotspot = new Hotspot();
+                byRoot.put(cellOfCluster[i], hotspot);
+            }
+            hotspot.add(aThermals.get(i), lat[i], lon[i]);
+        }
+        List<Hotspot> hotspots = new ArrayList<>(byRoot.values());
+        hotspots.sort((a, b) -> a.days.size() != b.days.size() ? Integer.compare(b.days.size(), a.days.size()) : Integer.compare(b.thermals.size(), a.thermals.size()));
+
+        lat = lon = cos = null;
+        keys = null;
+        members = cellStart = null;
+        neighbours = null;
+        return hotspots;
+    }
+
+    /**
+     * Hashes every thermal into its cell and sorts members by cell, then finds
+     * the cells which may hold neighbours of each cell.
+     *
+     * Cells are numbered in the order of their keys, row by row and west to east,
+     * so the cells of a row within a range of columns are found with one binary
+     * search in the sorted keys.
+     */
+    private void buildGrid() {
+        final int count = lat.length;
+        long[] keyOf = new long[count];
+        // Open addressing on the cell keys, which are never negative.
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+        long[] slots = new long[capacity];
+        Arrays.fill(slots, -1);
+        int cellCount = 0;
+        for(int i = 0; i < count; i++) {
+            long row = (long)Math.floor((lat[i] + 90) / cellHeight);
+            long column = (long)Math.floor((lon[i] + 180) / cellWidth(row));
+            keyOf[i] = (row << 32) | column;
+            int slot = slotOf(slots, keyOf[i]);
+            if(slots[slot] == -1) {
+                slots[slot] = keyOf[i];
+                cellCount++;
+            }
+        }
+        keys = new long[cellCount];
+        int k = 0;
+        for(long key : slots) {
+            if(key != -1) {
+                keys[k++] = key;
+            }
+        }
+        Arrays.sort(keys);
+
+        // Counting sort of the thermals by cell.
+        int[] cellOf = new int[count];
+        cellStart = new int[cellCount + 1];
+        for(int i = 0; i < count; i++) {
+            cellOf[i] = Arrays.binarySearch(keys, keyOf[i]);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for(int cell = 0; cell < cellCount; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        members = new int[count];
+        int[] next = Arrays.copyOf(cellStart, cellCount);
+        for(int i = 0; i < count; i++) {
+            members[next[cellOf[i]]++] = i;
+        }
+
+        // A radius is less than 2 rows, so neighbours are at most 2 rows away.
+        neighbours = new int[cellCount][];
+        int[] found = new int[64];
+        for(int cell = 0; cell < cellCount; cell++) {
+            long row = keys[cell] >>> 32;
+            long column = keys[cell] & 0xffffffffL;
+            double west = column * cellWidth(row) - 180;
+            double east = west + cellWidth(row);
+            double poleward = Math.max(Math.abs(rowSouth(row - 2)), Math.abs(rowSouth(row + 3)));
+            double radiusLon = degreesEast(radius, poleward);
+            int size = 0;
+            for(long r = Math.max(0, row - 2); r <= row + 2; r++) {
+                double width = cellWidth(r);
+                long first = Math.max(0, (long)Math.floor((west - radiusLon + 180) / width));
+                long last = (long)Math.floor((east + radiusLon + 180) / width);
+                int neighbour = Arrays.binarySearch(keys, (r << 32) | first);
+                if(neighbour < 0) {
+                    neighbour = -neighbour - 1;
+                }
+                for(; neighbour < cellCount && keys[neighbour] <= ((r << 32) | last); neighbour++) {
+                    if(size == found.length) {
+                        found = Arrays.copyOf(found, size * 2);
+                    }
+                    found[size++] = neighbour;
+                }
+            }
+            neighbours[cell] = Arrays.copyOf(found, size);
+        }
+    }
+
+    /**
+     * @return The slot of aSlots holding aKey, or the empty slot where it belongs.
+     */
+    private static int slotOf(long[] aSlots, long aKey) {
+        final int mask = aSlots.length - 1;
+        long hash = aKey * 0x9E3779B97F4A7C15L;
+        int slot = (int)(hash ^ (hash >>> 32)) & mask;
+        while(aSlots[slot] != -1 && aSlots[slot] != aKey) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return For every thermal, whether it has at least minThermals neighbours.
+     */
+    private boolean[] findCore() {
+        boolean[] core = new boolean[lat.length];
+        for(int cell = 0; cell < cellStart.length - 1; cell++) {
+            if(cellStart[cell + 1] - cellStart[cell] >= minThermals) {
+                for(int m = cellStart[cell]; m < cellStart[cell + 1]; m++) {
+                    core[members[m]] = true;
+                }
+                continue;
+            }
+            for(int m = cellStart[cell]; m < cellStart[cell + 1]; m++) {
+                int thermal = members[m];
+                int found = 0;
+                search:
+                for(int neighbour : neighbours[cell]) {
+                    for(int n = cellStart[neighbour]; n < cellStart[neighbour + 1]; n++) {
+                        if(isNeighbour(thermal, members[n]) && ++found >= minThermals) {
+                            core[thermal] = true;
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+        return core;
+    }
+
+    /**
+     * @return A union-find forest over the cells, joining cells with core
+     *         thermals which are neighbours.
+     */
+    private int[] joinCells(boolean[] aCore) {
+        final int cellCount = cellStart.length - 1;
+        int[] parent = new int[cellCount];
+        for(int cell = 0; cell < cellCount; cell++) {
+            parent[cell] = cell;
+        }
+        for(int cell = 0; cell < cellCount; cell++) {
+            for(int neighbour : neighbours[cell]) {
+                if(neighbour <= cell || find(parent, cell) == find(parent, neighbour)) {
+                    continue;
+                }
+                if(haveCoreNeighbours(aCore, cell, neighbour)) {
+                    parent[find(parent, neighbour)] = find(parent, cell);
+                }
+            }
+        }
+        return parent;
+    }
+
+    private boolean haveCoreNeighbours(boolean[] aCore, int aCell, int aOther) {
+        for(int m = cellStart[aCell]; m < cellStart[aCell + 1]; m++) {
+            if(!aCore[members[m]]) {
+                continue;
+            }
+            for(int n = cellStart[aOther]; n < cellStart[aOther + 1]; n++) {
+                if(aCore[members[n]] && isNeighbour(members[m], members[n])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int find(int[] aParent, int aCell) {
+        int root = aCell;
+        while(aParent[root] != root) {
+            root = aParent[root];
+        }
+        // Path compression.
+        while(aParent[aCell] != root) {
+            int next = aParent[aCell];
+            aParent[aCell] = root;
+            aCell = next;
+        }
+        return root;
+    }
+
+    /**
+     * The east scale is the mean of that at both thermals, so the test is
+     * symmetric.
+     */
+    private boolean isNeighbour(int aThermal, int aOther) {
+        double north = (lat[aThermal] - lat[aOther]) * LocalProjection.METERS_PER_DEGREE;
+        double east = (lon[aThermal] - lon[aOther]) * LocalProjection.METERS_PER_DEGREE * (cos[aThermal] + cos[aOther]) / 2;
+        return north * north + east * east <= radius * radius;
+    }
+
+    private double rowSouth(long aRow) {
+        return Math.max(-90, Math.min(90, aRow * cellHeight - 90));
+    }
+
+    /**
+     * @return The width in degrees of the cells of aRow: their diagonal is the
+     *         radius even at the edge of the row closest to the equator.
+     */
+    private double cellWidth(long aRow) {
+        double south = rowSouth(aRow), north = rowSouth(aRow + 1);
+        double equatorward = south <= 0 && north >= 0 ? 0 : Math.min(Math.abs(south), Math.abs(north));
+        return Math.min(360, degreesEast(radius / Math.sqrt(2), equatorward));
+    }
+
+    /**
+     * @return The degrees of longitude spanning aMeters at aLat.
+     */
+    private static double degreesEast(double aMeters, double aLat) {
+        double cosLat = Math.cos(Math.toRadians(aLat));
+        return cosLat < 1e-9 ? 360 : Math.min(360, aMeters / (LocalProjection.METERS_PER_DEGREE * cosLat));
+    }
+
+    /**
+     * A group of thermals, with statistics over them.
+     */
+    public static class Hotspot {
+        void add(Thermal aThermal, double aLat, double aLon) {
+            thermals.add(aThermal);
+            sumLat += aLat;
+            sumLon += aLon;
+            long day = (long)Math.floor((aThermal.getDate() != null ? aThermal.getDate().getTime() : aThermal.getStartTime()) / MILLIS_PER_DAY);
+            days.add(day);
+            if(aThermal.getPilot() != null) {
+                pilots.add(aThermal.getPilot());
+            }
+            double climbRate = aThermal.getAverageClimbRate();
+            sumClimbRate += climbRate;
+            sumSquaredClimbRate += climbRate * climbRate;
+            maxClimbRate = Math.max(maxClimbRate, climbRate);
+            sumTopHeight += aThermal.getMaxHeight();
+        }
+
+        /**
+         * @return The mean of the clustered positions of the thermals.
+         */
+        public LatLng getCentroid() {
+            return new LatLng(sumLat / thermals.size(), sumLon / thermals.size());
+        }
+
+        public List<Thermal> getThermals() {
+            return thermals;
+        }
+
+        public int getDistinctDays() {
+            return days.size();
+        }
+
+        public int getDistinctPilots() {
+            return pilots.size();
+        }
+
+        public double getMeanClimbRate() {
+            return sumClimbRate / thermals.size();
+        }
+
+        public double getClimbRateStdDev() {
+            double mean = getMeanClimbRate();
+            return Math.sqrt(Math.max(0, sumSquaredClimbRate / thermals.size() - mean * mean));
+        }
+
+        public double getMaxClimbRate() {
+            return maxClimbRate;
+        }
+
+        public double getMeanTopHeight() {
+            return sumTopHeight / thermals.size();
+        }
+
+        String getDescription() {
+            return "Thermals: " + thermals.size() +
+                   "\nDays: " + days.size() +
+                   "\nPilots: " + pilots.size() +
+                   "\nAverage Climb Rate (m/s): " + getMeanClimbRate() +
+                   "\nClimb Rate Std Dev (m/s): " + getClimbRateStdDev() +
+                   "\nBest Climb Rate (m/s): " + maxClimbRate +
+                   "\nAverage Max Height(m): " + getMeanTopHeight();
+        }
+
+        /**
+         * Writes a folder named aName holding a placemark at the centroid with
+         * the statistics of the hotspot, and its thermals.
+         * @param aWriter
+         * @param aName
+         * @throws XMLStreamException
+         */
+        public void exportToKml(StreamingKmlWriter aWriter, String aName) throws XMLStreamException {
+            aWriter.startFolder(aName + " (" + thermals.size() + " thermals, " + days.size() + " days)", false);
+            LatLng centroid = getCentroid();
+            aWriter.writePointPlacemark(aName, getDescription(), centroid.getLongitude(), centroid.getLatitude());
+            for(Thermal thermal : thermals) {
+                thermal.exportToKml(aWriter, KmlFolderCategory.THERMAL_STYLE_NAME + KmlFolderCategory.getStyleNumber(thermal, Configuration.getConfig().ColorByField), 0);
+            }
+            aWriter.endFolder();
+        }
+
+        final List<Thermal> thermals = new ArrayList<>();
+        final Set<Long> days = new HashSet<>();
+        final Set<String> pilots = new HashSet<>();
+        double sumLat;
+        double sumLon;
+        double sumClimbRate;
+        double sumSquaredClimbRate;
+        double maxClimbRate = Double.NEGATIVE_INFINITY;
+        double sumTopHeight;
+    }
+
+    final double radius;
+    final int minThermals;
+    final ThermalIndex.Anchor anchor;
+    final double cellHeight;
+
+    // Only kept while cluster() runs.
+    double[] lat;
+    double[] lon;
+    double[] cos;
+    // The keys of the cells, ascending: the row in the upper half, the column in the lower.
+    long[] keys;
+    // The thermals of cell c are members[cellStart[c]] to members[cellStart[c + 1] - 1].
+    int[] members;
+    int[] cellStart;
+    // For every cell, the cells which may hold neighbours of its thermals, itself included.
+    int[][] neighbours;
+}
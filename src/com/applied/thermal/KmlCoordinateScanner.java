@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the text of a KML <coordinates> block ("lon,lat[,alt] lon,lat[,alt] ...")
+ * straight out of a ByteBuffer into primitive arrays. No Strings are created for
+ * the coordinates themselves.
+ * @author James Betker
+ */
+final class KmlCoordinateScanner {
+
+    public KmlCoordinateScanner(int aInitialCapacity) {
+        lon = new double[aInitialCapacity];
+        lat = new double[aInitialCapacity];
+        alt = new double[aInitialCapacity];
+    }
+
+    /**
+     * Parses all coordinates found in the bytes [aStart, aEnd) of aBuffer and
+     * appends them to this scanner's arrays.
+     * @param aBuffer
+     * @param aStart
+     * @param aEnd
+     */
+    public void scan(ByteBuffer aBuffer, int aStart, int aEnd) {
+        double[] values = new double[3];
+        int pos = aStart;
+        while(true) {
+            // Skip whitespace up to the next tuple.
+            while(pos < aEnd && isWhitespace(aBuffer.get(pos))) pos++;
+            if(pos >= aEnd) return;
+
+            int valueCount = 0;
+            while(pos < aEnd) {
+                int valueEnd = pos;
+                while(valueEnd < aEnd && aBuffer.get(valueEnd) != ',' && !isWhitespace(aBuffer.get(valueEnd))) valueEnd++;
+                if(valueEnd > pos && valueCount < values.length) {
+                    values[valueCount++] = parseDecimal(aBuffer, pos, valueEnd);
+                }
+                pos = valueEnd;
+                if(pos < aEnd && aBuffer.get(pos) == ',') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if(valueCount > 0) {
+                add(values[0], valueCount > 1 ? values[1] : 0, valueCount > 2 ? values[2] : 0);
+            }
+        }
+    }
+
+    void add(double aLon, double aLat, double aAlt) {
+        ensureCapacity(count + 1);
+        lon[count] = aLon;
+        lat[count] = aLat;
+        alt[count] = aAlt;
+        count++;
+    }
+
+    private void ensureCapacity(int aCapacity) {
+        if(aCapacity > lon.length) {
+            int capacity = Math.max(aCapacity, Math.max(16, lon.length * 2));
+            lon = Arrays.copyOf(lon, capacity);
+            lat = Arrays.copyOf(lat, capacity);
+            alt = Arrays.copyOf(alt, capacity);
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Parses an ASCII decimal number from the bytes [aStart, aEnd) of aBuffer.
+     *
+     * Numbers with at most 15 significant digits and a small decimal exponent (all
+     * coordinates OLC writes) are computed as a single division of two exactly
+     * representable doubles, which is correctly rounded and therefore identical to
+     * Double.parseDouble. Anything else is handed to Double.parseDouble.
+     * @param aBuffer
+     * @param aStart
+     * @param aEnd
+     * @return
+     */
+    static double parseDecimal(ByteBuffer aBuffer, int aStart, int aEnd) {
+        int pos = aStart;
+        boolean negative = false;
+        byte b = aBuffer.get(pos);
+        if(b == '-' || b == '+') {
+            negative = (b == '-');
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        boolean seenDigit = false;
+        for(; pos < aEnd; pos++) {
+            b = aBuffer.get(pos);
+            if(b >= '0' && b <= '9') {
+                seenDigit = true;
+                if(mantissa != 0 || b != '0') digits++;
+                if(digits > 15) return slowParse(aBuffer, aStart, aEnd);
+                mantissa = mantissa * 10 + (b - '0');
+                if(seenPoint) fractionDigits++;
+            } else if(b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                // Exponents and anything unexpected take the slow path.
+                return slowParse(aBuffer, aStart, aEnd);
+            }
+        }
+        if(!seenDigit || fractionDigits >= POWERS_OF_TEN.length) {
+            return slowParse(aBuffer, aStart, aEnd);
+        }
+
+        double value = (double)mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static double slowParse(ByteBuffer aBuffer, int aStart, int aEnd) {
+        byte[] bytes = new byte[aEnd - aStart];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = aBuffer.get(aStart + i);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    double[] lon;
+    double[] lat;
+    double[] alt;
+    int count;
+}
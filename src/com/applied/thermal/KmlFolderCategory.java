@@ -44,7 +44,7 @@ class KmlFolderCategory extends ThermalCategory {
         }
     }
     
-    private static String colorString(int aColor) {
+    static String colorString(int aColor) {
         String color = Integer.toHexString(aColor);
         while(color.length() < 6) {
             color = "0" + color;
@@ -74,17 +74,38 @@ class KmlFolderCategory extends ThermalCategory {
     }
     
     protected int getStyleNumber(Thermal aThermal) {
-        KmlFolderCategory styleCat = null;
-        KmlFolderCategory curCat = this;
+        return getStyleNumber(this, aThermal);
+    }
+    
+    /**
+     * Picks the style of aThermal from the value of Configuration.ColorByField, if
+     * aCategory or one of its parents is categorized by that field.
+     * @param aCategory
+     * @param aThermal
+     * @return 
+     */
+    static int getStyleNumber(ThermalCategory aCategory, Thermal aThermal) {
+        ThermalCategory styleCat = null;
+        ThermalCategory curCat = aCategory;
         while(styleCat == null && curCat != null) {
-            if(Configuration.getConfig().ColorByField == curCat.field) {
+            if(Configuration.getConfig().ColorByField == curCat.getField()) {
                 styleCat = curCat;
             }
-            curCat = (KmlFolderCategory)curCat.parentCategory;
+            curCat = curCat.getParentCategory();
         }
         
         if(styleCat == null) return 0;
-        ThermalValue val = ThermalValue.getFieldValue(aThermal, styleCat.field);
+        return getStyleNumber(aThermal, styleCat.getField());
+    }
+    
+    /**
+     * Picks the style of aThermal from its value of aField.
+     * @param aThermal
+     * @param aField
+     * @return 
+     */
+    static int getStyleNumber(Thermal aThermal, ThermalCategory.ThermalSortingField aField) {
+        ThermalValue val = ThermalValue.getFieldValue(aThermal, aField);
         if(val.isString) {
             // Strings cannot have styles (yet).
             return 0;
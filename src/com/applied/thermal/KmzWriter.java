@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Writes a KMZ archive made of a root doc.kml, which holds a NetworkLink to each
+ * of a number of KML entries, and the entries themselves.
+ *
+ * Entries are compressed while they are written: every CHUNK_SIZE bytes of an
+ * entry are deflated as an independent block on a worker pool, and the blocks are
+ * concatenated into a single deflate stream, in the same way as pigz. This keeps
+ * all cores busy even when one entry is much larger than the others, and only a
+ * bounded number of uncompressed chunks is held in memory at any time.
+ *
+ * Compressed entries are spooled to a temporary file, so that doc.kml, which
+ * is only known once every entry has been written, can be placed first in the
+ * archive as Google Earth requires.
+ * @author James Betker
+ */
+public class KmzWriter implements AutoCloseable {
+    static final String ROOT_ENTRY = "doc.kml";
+    static final int CHUNK_SIZE = 1 << 20;
+
+    public KmzWriter(File aFile, String aName) throws IOException {
+        this(aFile, aName, Configuration.getConfig().CompressionThreads);
+    }
+
+    public KmzWriter(File aFile, String aName, int aThreads) throws IOException {
+        file = aFile;
+        name = aName;
+        spoolFile = File.createTempFile("thermals", ".kmz.tmp");
+        spoolFile.deleteOnExit();
+        spool = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        executor = Executors.newFixedThreadPool(Math.max(1, aThreads));
+        maxPending = Math.max(1, aThreads) * 2;
+    }
+
+    /**
+     * Adds a NetworkLink to the root document.
+     * @param aName
+     * @param aEntryName The entry the link points to.
+     * @param aVisible Invisible links are only loaded once they are enabled.
+     */
+    public void addNetworkLink(String aName, String aEntryName, boolean aVisible) {
+        links.add(new NetworkLink(aName, aEntryName, aVisible));
+    }
+
+    /**
+     * Starts a new entry. The entry is complete once the returned stream is closed,
+     * which must happen before the next entry is started.
+     * @param aEntryName
+     * @return
+     */
+    public OutputStream newEntry(String aEntryName) {
+        Entry entry = new Entry(aEntryName);
+        entries.add(entry);
+        return new EntryOutputStream(entry);
+    }
+
+    /**
+     * Writes the root document and assembles the archive.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    @Override
+    public void close() throws IOException, XMLStreamException {
+        try {
+            Entry root = new Entry(ROOT_ENTRY);
+            try(StreamingKmlWriter writer = new StreamingKmlWriter(new EntryOutputStream(root), name)) {
+                for(NetworkLink link : links) {
+                    writer.writeNetworkLink(link.name, link.entryName, link.visible);
+                }
+            }
+            drain(0);
+
+            if(entries.size() + 1 > 0xffff) {
+                throw new IOException("KMZ archives are limited to 65535 entries");
+            }
+            try(FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer directory = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+                int count = 0;
+                directory = writeEntry(out, root, directory);
+                count++;
+                for(Entry entry : entries) {
+                    directory = writeEntry(out, entry, directory);
+                    count++;
+                }
+                long directoryOffset = out.position();
+                directory.flip();
+                int directorySize = directory.remaining();
+                writeFully(out, directory);
+
+                ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+                end.putInt(0x06054b50).putShort((short)0).putShort((short)0);
+                end.putShort((short)count).putShort((short)count);
+                end.putInt(directorySize).putInt((int)checkZip32(directoryOffset));
+                end.putShort((short)0);
+                end.flip();
+                writeFully(out, end);
+            }
+        } finally {
+            executor.shutdownNow();
+            spool.close();
+            spoolFile.delete();
+        }
+    }
+
+    /**
+     * Writes the local header and data of aEntry to aOut and appends its central
+     * directory record to aDirectory.
+     * @return aDirectory, or a larger copy of it.
+     */
+    private ByteBuffer writeEntry(FileChannel aOut, Entry aEntry, ByteBuffer aDirectory) throws IOException {
+        byte[] entryName = aEntry.name.getBytes(StandardCharsets.UTF_8);
+        long offset = aOut.position();
+        ByteBuffer header = ByteBuffer.allocate(30 + entryName.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x04034b50);
+        putCommonHeader(header, aEntry);
+        header.putShort((short)entryName.length).putShort((short)0);
+        header.put(entryName);
+        header.flip();
+        writeFully(aOut, header);
+        long position = aEntry.spoolOffset;
+        long end = aEntry.spoolOffset + aEntry.compressedSize;
+        while(position < end) {
+            position += spool.transferTo(position, end - position, aOut);
+        }
+
+        if(aDirectory.remaining() < 46 + entryName.length) {
+            ByteBuffer larger = ByteBuffer.allocate(aDirectory.capacity() * 2 + entryName.length).order(ByteOrder.LITTLE_ENDIAN);
+            aDirectory.flip();
+            larger.put(aDirectory);
+            aDirectory = larger;
+        }
+        aDirectory.putInt(0x02014b50).putShort((short)20);
+        putCommonHeader(aDirectory, aEntry);
+        aDirectory.putShort((short)entryName.length).putShort((short)0).putShort((short)0);
+        aDirectory.putShort((short)0).putShort((short)0).putInt(0);
+        aDirectory.putInt((int)checkZip32(offset));
+        aDirectory.put(entryName);
+        return aDirectory;
+    }
+
+    /**
+     * Puts the fields that the local header and the central directory record share.
+     */
+    private void putCommonHeader(ByteBuffer aBuffer, Entry aEntry) throws IOException {
+        aBuffer.putShort((short)20);                // Version needed to extract.
+        aBuffer.putShort((short)0x0800);            // Names are UTF-8.
+        aBuffer.putShort((short)Deflater.DEFLATED);
+        aBuffer.putInt(dosTime);
+        aBuffer.putInt((int)aEntry.crc);
+        aBuffer.putInt((int)checkZip32(aEntry.compressedSize));
+        aBuffer.putInt((int)checkZip32(aEntry.size));
+    }
+
+    private static long checkZip32(long aValue) throws IOException {
+        if(aValue >= 0xffffffffL) {
+            throw new IOException("KMZ entries and archives must be smaller than 4GB");
+        }
+        return aValue;
+    }
+
+    private static void writeFully(FileChannel aOut, ByteBuffer aBuffer) throws IOException {
+        while(aBuffer.hasRemaining()) {
+            aOut.write(aBuffer);
+        }
+    }
+
+    /**
+     * Queues a chunk of an entry for compression.
+     * @param aEntry
+     * @param aChunk
+     * @param aLength
+     * @param aLast Whether this is the final chunk of the entry.
+     */
+    private void submitChunk(Entry aEntry, byte[] aChunk, int aLength, boolean aLast) throws IOException {
+        // Bounds the memory held by chunks which are queued or being compressed.
+        drain(maxPending - 1);
+        pending.add(new Chunk(aEntry, executor.submit(() -> deflate(aChunk, aLength, aLast))));
+    }
+
+    /**
+     * Deflates a chunk into raw deflate blocks. Every chunk but the last ends with
+     * a sync flush, so the chunks of an entry can simply be concatenated.
+     */
+    private static byte[] deflate(byte[] aChunk, int aLength, boolean aLast) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(aChunk, 0, aLength);
+            if(aLast) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(aLength / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while(true) {
+                int length = aLast ? deflater.deflate(buffer) : deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, length);
+                if(aLast ? deflater.finished() : length < buffer.length) {
+                    break;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Spools compressed chunks, in order, until no more than aMaxPending remain.
+     * Chunks that are done are always spooled.
+     * @param aMaxPending
+     */
+    private void drain(int aMaxPending) throws IOException {
+        while(!pending.isEmpty() && (pending.size() > aMaxPending || pending.peek().data.isDone())) {
+            Chunk chunk = pending.poll();
+            byte[] data;
+            try {
+                data = chunk.data.get();
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch(ExecutionException e) {
+                throw new IOException("Unable to compress " + chunk.entry.name, e.getCause());
+            }
+            if(chunk.entry.spoolOffset < 0) {
+                chunk.entry.spoolOffset = spool.position();
+            }
+            writeFully(spool, ByteBuffer.wrap(data));
+            chunk.entry.compressedSize += data.length;
+        }
+    }
+
+    /**
+     * Buffers the bytes of an entry into chunks and computes its CRC on the way.
+     */
+    private class EntryOutputStream extends OutputStream {
+        EntryOutputStream(Entry aEntry) {
+            entry = aEntry;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            entry.size += len;
+            while(len > 0) {
+                int count = Math.min(len, chunk.length - length);
+                System.arraycopy(b, off, chunk, length, count);
+                length += count;
+                off += count;
+                len -= count;
+                if(length == chunk.length) {
+                    submitChunk(entry, chunk, length, false);
+                    chunk = new byte[CHUNK_SIZE];
+                    length = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(chunk != null) {
+                entry.crc = crc.getValue();
+                submitChunk(entry, chunk, length, true);
+                chunk = null;
+            }
+        }
+
+        final Entry entry;
+        final CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = 0;
+    }
+
+    private static class Entry {
+        Entry(String aName) {
+            name = aName;
+        }
+
+        final String name;
+        long crc;
+        long size;
+        long compressedSize;
+        long spoolOffset = -1;
+    }
+
+    private static class Chunk {
+        Chunk(Entry aEntry, Future<byte[]> aData) {
+            entry = aEntry;
+            data = aData;
+        }
+
+        final Entry entry;
+        final Future<byte[]> data;
+    }
+
+    private static class NetworkLink {
+        NetworkLink(String aName, String aEntryName, boolean aVisible) {
+            name = aName;
+            entryName = aEntryName;
+            visible = aVisible;
+        }
+
+        final String name;
+        final String entryName;
+        final boolean visible;
+    }
+
+    /**
+     * @return The current time in MS-DOS format, as used by zip headers.
+     */
+    private static int currentDosTime() {
+        Calendar now = Calendar.getInstance();
+        return ((now.get(Calendar.YEAR) - 1980) << 25) | ((now.get(Calendar.MONTH) + 1) << 21) | (now.get(Calendar.DAY_OF_MONTH) << 16)
+                | (now.get(Calendar.HOUR_OF_DAY) << 11) | (now.get(Calendar.MINUTE) << 5) | (now.get(Calendar.SECOND) >> 1);
+    }
+
+    final File file;
+    final String name;
+    final File spoolFile;
+    final FileChannel spool;
+    final ExecutorService executor;
+    final int maxPending;
+    final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+    final ArrayList<Entry> entries = new ArrayList<>();
+    final ArrayList<NetworkLink> links = new ArrayList<>();
+    final int dosTime = currentDosTime();
+}
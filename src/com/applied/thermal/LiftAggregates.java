@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Summarizes where and how well thermals work: every thermal is binned into the
+ * geohash cell of its first fix at each of a set of precisions, and each cell
+ * keeps the count, sum and sum of squares of the average climb rates, the best
+ * average climb rate and the sum of the top heights of its thermals.
+ *
+ * Climb rates are kept in mm/s and heights in decimeters, as longs, so all of
+ * these merge exactly by adding or taking the maximum: aggregates built from
+ * separate sets of flights, in any order or grouping, merge into the very same
+ * aggregate as one built from all of them. Thermals may be added from several
+ * threads at once; each cell has its own lock, so threads only contend when they
+ * add to the same cell.
+ *
+ * A cell is identified by a key holding its precision in the top bits and its
+ * geohash bits below, so sorting keys groups cells by precision and then along
+ * the geohash Z-order curve. write() stores the cells in that order with the key
+ * as a delta from the previous one, and every value as a varint.
+ * @author James Betker
+ */
+public class LiftAggregates {
+    static final int MAGIC = 0x4c494654; // "LIFT"
+    static final int VERSION = 1;
+    public static final int MAX_PRECISION = 11;
+    static final int PRECISION_SHIFT = 58;
+    static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    static final double CLIMB_RATE_SCALE = 1000;
+    static final double HEIGHT_SCALE = 10;
+
+    /**
+     * @param aPrecisions The geohash lengths of the cells thermals are binned
+     *                    into, from 1 to MAX_PRECISION.
+     */
+    public LiftAggregates(int[] aPrecisions) {
+        for(int precision : aPrecisions) {
+            if(precision < 1 || precision > MAX_PRECISION) {
+                throw new IllegalArgumentException("Geohash precision out of range: " + precision);
+            }
+        }
+        precisions = aPrecisions.clone();
+    }
+
+    /**
+     * Adds aThermal to its cell at every precision.
+     * @param aThermal
+     */
+    public void add(Thermal aThermal) {
+        if(aThermal.numFixes() == 0) {
+            return;
+        }
+        FlightFix first = aThermal.getFirstFix();
+        long climbRate = Math.round(aThermal.getAverageClimbRate() * CLIMB_RATE_SCALE);
+        long topHeight = Math.round(aThermal.getMaxHeight() * HEIGHT_SCALE);
+        for(int precision : precisions) {
+            long key = key(first.pos.getLatitude(), first.pos.getLongitude(), precision);
+            cells.computeIfAbsent(key, k -> new Cell()).add(climbRate, topHeight);
+        }
+    }
+
+    /**
+     * Adds the cells of aOther to this aggregate. aOther is not changed.
+     * @param aOther
+     */
+    public void merge(LiftAggregates aOther) {
+        for(Map.Entry<Long, Cell> entry : aOther.cells.entrySet()) {
+            cells.computeIfAbsent(entry.getKey(), k -> new Cell()).merge(entry.getValue());
+        }
+        TreeSet<Integer> union = new TreeSet<>();
+        for(int precision : precisions) {
+            union.add(precision);
+        }
+        for(int precision : aOther.precisions) {
+            union.add(precision);
+        }
+        int[] merged = new int[union.size()];
+        int i = 0;
+        for(int precision : union) {
+            merged[i++] = precision;
+        }
+        precisions = merged;
+    }
+
+    /**
+     * @param aLat
+     * @param aLon
+     * @param aPrecision
+     * @return The cell of aPrecision holding aLat, aLon, or null if no thermal was
+     *         added to it.
+     */
+    public Cell getCell(double aLat, double aLon, int aPrecision) {
+        return cells.get(key(aLat, aLon, aPrecision));
+    }
+
+    /**
+     * @param aPrecision
+     * @return The keys of all cells of aPrecision, in ascending order.
+     */
+    public long[] getKeys(int aPrecision) {
+        long[] keys = new long[cells.size()];
+        int count = 0;
+        for(long key : cells.keySet()) {
+            if(precisionOf(key) == aPrecision) {
+                keys[count++] = key;
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * @param aKey
+     * @return The cell with aKey, or null if there is none.
+     */
+    public Cell getCell(long aKey) {
+        return cells.get(aKey);
+    }
+
+    public int[] getPrecisions() {
+        return precisions.clone();
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    /**
+     * @param aLat
+     * @param aLon
+     * @param aPrecision
+     * @return The key of the geohash cell of aPrecision holding aLat, aLon.
+     */
+    public static long key(double aLat, double aLon, int aPrecision) {
+        final int bits = 5 * aPrecision;
+        // Geohashes start with a longitude bit, so longitude gets the odd one.
+        final int lonBits = (bits + 1) / 2;
+        final int latBits = bits / 2;
+        long lon = cellIndex((aLon + 180) / 360, lonBits);
+        long lat = cellIndex((aLat + 90) / 180, latBits);
+        long hash = 0;
+        for(int i = bits - 1; i >= 0; i--) {
+            // Counting from the most significant bit, even bits are longitude.
+            int fromTop = bits - 1 - i;
+            long bit = (fromTop & 1) == 0 ? lon >>> (lonBits - 1 - fromTop / 2) : lat >>> (latBits - 1 - fromTop / 2);
+            hash |= (bit & 1) << i;
+        }
+        return ((long)aPrecision << PRECISION_SHIFT) | hash;
+    }
+
+    private static long cellIndex(double aFraction, int aBits) {
+        long cells = 1L << aBits;
+        return Math.max(0, Math.min(cells - 1, (long)Math.floor(aFraction * cells)));
+    }
+
+    public static int precisionOf(long aKey) {
+        return (int)(aKey >>> PRECISION_SHIFT);
+    }
+
+    /**
+     * @param aKey
+     * @return The geohash of the cell with aKey, e.g. "9q5ct".
+     */
+    public static String geohash(long aKey) {
+        final int precision = precisionOf(aKey);
+        char[] chars = new char[precision];
+        for(int i = 0; i < precision; i++) {
+            chars[i] = BASE32.charAt((int)(aKey >>> (5 * (precision - 1 - i))) & 31);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param aKey
+     * @return The bounds of the cell with aKey as { south, west, north, east }.
+     */
+    public static double[] bounds(long aKey) {
+        final int bits = 5 * precisionOf(aKey);
+        final int lonBits = (bits + 1) / 2;
+        final int latBits = bits / 2;
+        long lon = 0, lat = 0;
+        for(int fromTop = 0; fromTop < bits; fromTop++) {
+            long bit = (aKey >>> (bits - 1 - fromTop)) & 1;
+            if((fromTop & 1) == 0) {
+                lon = (lon << 1) | bit;
+            } else {
+                lat = (lat << 1) | bit;
+            }
+        }
+        double lonSize = 360. / (1L << lonBits);
+        double latSize = 180. / (1L << latBits);
+        return new double[] { -90 + lat * latSize, -180 + lon * lonSize, -90 + (lat + 1) * latSize, -180 + (lon + 1) * lonSize };
+    }
+
+    /**
+     * Writes the aggregate to aFile, replacing it atomically.
+     * @param aFile
+     */
+    public void write(File aFile) {
+        List<Long> keys = new ArrayList<>(cells.keySet());
+        keys.sort(null);
+        // Header, then per cell at most six varints.
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 4 * precisions.length + keys.size() * 6 * 10);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(precisions.length);
+        for(int precision : precisions) {
+            buffer.putInt(precision);
+        }
+        buffer.putInt(keys.size());
+        long previous = 0;
+        for(long key : keys) {
+            Cell cell = cells.get(key);
+            FlightCache.putVarLong(buffer, key - previous);
+            previous = key;
+            synchronized(cell) {
+                FlightCache.putVarLong(buffer, cell.count);
+                FlightCache.putVarLong(buffer, FlightCache.zigZagEncode(cell.sumClimbRate));
+                FlightCache.putVarLong(buffer, cell.sumSquaredClimbRate);
+                FlightCache.putVarLong(buffer, FlightCache.zigZagEncode(cell.maxClimbRate));
+                FlightCache.putVarLong(buffer, FlightCache.zigZagEncode(cell.sumTopHeight));
+            }
+        }
+        try {
+            File directory = aFile.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile(aFile.getName(), ".tmp", directory);
+            Files.write(temp.toPath(), Arrays.copyOf(buffer.array(), buffer.position()));
+            Files.move(temp.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads an aggregate written by write().
+     * @param aFile
+     * @return
+     */
+    public static LiftAggregates read(File aFile) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(aFile.toPath()));
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a lift aggregate file: " + aFile);
+            }
+            int[] precisions = new int[buffer.getInt()];
+            for(int i = 0; i < precisions.length; i++) {
+                precisions[i] = buffer.getInt();
+            }
+            LiftAggregates aggregates = new LiftAggregates(precisions);
+            int count = buffer.getInt();
+            long key = 0;
+            for(int i = 0; i < count; i++) {
+                key += FlightCache.getVarLong(buffer);
+                Cell cell = new Cell();
+                cell.count = FlightCache.getVarLong(buffer);
+                cell.sumClimbRate = FlightCache.zigZagDecode(FlightCache.getVarLong(buffer));
+                cell.sumSquaredClimbRate = FlightCache.getVarLong(buffer);
+                cell.maxClimbRate = FlightCache.zigZagDecode(FlightCache.getVarLong(buffer));
+                cell.sumTopHeight = FlightCache.zigZagDecode(FlightCache.getVarLong(buffer));
+                aggregates.cells.put(key, cell);
+            }
+            return aggregates;
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The statistics of the thermals in one cell.
+     */
+    public static class Cell {
+        synchronized void add(long aClimbRate, long aTopHeight) {
+            count++;
+            sumClimbRate += aClimbRate;
+            sumSquaredClimbRate += aClimbRate * aClimbRate;
+            maxClimbRate = Math.max(maxClimbRate, aClimbRate);
+            sumTopHeight += aTopHeight;
+        }
+
+        void merge(Cell aOther) {
+            long otherCount, otherSum, otherSquares, otherMax, otherTop;
+            synchronized(aOther) {
+                otherCount = aOther.count;
+                otherSum = aOther.sumClimbRate;
+                otherSquares = aOther.sumSquaredClimbRate;
+                otherMax = aOther.maxClimbRate;
+                otherTop = aOther.sumTopHeight;
+            }
+            synchronized(this) {
+                count += otherCount;
+                sumClimbRate += otherSum;
+                sumSquaredClimbRate += otherSquares;
+                maxClimbRate = Math.max(maxClimbRate, otherMax);
+                sumTopHeight += otherTop;
+            }
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The mean of the average climb rates in m/s.
+         */
+        public synchronized double getMeanClimbRate() {
+            return sumClimbRate / CLIMB_RATE_SCALE / count;
+        }
+
+        /**
+         * @return The standard deviation of the average climb rates in m/s.
+         */
+        public synchronized double getClimbRateStdDev() {
+            double mean = (double)sumClimbRate / count;
+            double variance = Math.max(0, (double)sumSquaredClimbRate / count - mean * mean);
+            return Math.sqrt(variance) / CLIMB_RATE_SCALE;
+        }
+
+        /**
+         * @return The best average climb rate in m/s.
+         */
+        public synchronized double getMaxClimbRate() {
+            return maxClimbRate / CLIMB_RATE_SCALE;
+        }
+
+        /**
+         * @return The mean of the top heights in meters.
+         */
+        public synchronized double getMeanTopHeight() {
+            return sumTopHeight / HEIGHT_SCALE / count;
+        }
+
+        long count;
+        // In units of 1 / CLIMB_RATE_SCALE m/s.
+        long sumClimbRate;
+        long sumSquaredClimbRate;
+        long maxClimbRate = Long.MIN_VALUE;
+        // In units of 1 / HEIGHT_SCALE m.
+        long sumTopHeight;
+    }
+
+    volatile int[] precisions;
+    final ConcurrentHashMap<Long, Cell> cells = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.javadocmd.simplelatlng.LatLng;
+import com.javadocmd.simplelatlng.LatLngTool;
+import com.javadocmd.simplelatlng.util.LengthUnit;
+
+/**
+ * Detects thermals for a single glider from fixes that are pushed to it one at a
+ * time, as they arrive from a live feed.
+ *
+ * Only a bounded ring buffer of recent fixes is kept (Configuration.LiveFixBufferSize),
+ * so memory per glider is constant no matter how long it flies. Each new fix is
+ * compared against the newest buffered fix that is at least a minute older, using
+ * the same rate requirements as ThermalDetector. If fixes arrive so quickly that
+ * the buffer spans less than a minute, the oldest buffered fix is used and the
+ * climb is scaled to a one minute period.
+ *
+ * A thermal is reported as started once the rate requirements hold and it has
+ * climbed more than Configuration.MinThermalClimbDistance, updated with every
+ * further fix, and ended as soon as the rate requirements are broken.
+ * @author James Betker
+ */
+public class LiveThermalDetector {
+
+    /**
+     * Receives thermal events from a LiveThermalDetector.
+     */
+    public interface Listener {
+        public void thermalStarted(LiveThermal aThermal);
+        public void thermalUpdated(LiveThermal aThermal);
+        public void thermalEnded(LiveThermal aThermal);
+    }
+
+    /**
+     * A thermal that is in progress or has just ended.
+     */
+    public static class LiveThermal {
+        LiveThermal(String aGlider, double aLat, double aLon, double aAlt, long aTime) {
+            glider = aGlider;
+            startLat = aLat;
+            startLon = aLon;
+            startAlt = aAlt;
+            startTime = aTime;
+            minAlt = maxAlt = aAlt;
+            minAltTime = maxAltTime = aTime;
+            extend(aLat, aLon, aAlt, aTime);
+        }
+
+        void extend(double aLat, double aLon, double aAlt, long aTime) {
+            lat = aLat;
+            lon = aLon;
+            alt = aAlt;
+            time = aTime;
+            if(aAlt < minAlt) {
+                minAlt = aAlt;
+                minAltTime = aTime;
+            }
+            if(aAlt > maxAlt) {
+                maxAlt = aAlt;
+                maxAltTime = aTime;
+            }
+        }
+
+        public String getGlider() {
+            return glider;
+        }
+
+        public LatLng getStartPosition() {
+            return new LatLng(startLat, startLon);
+        }
+
+        public LatLng getPosition() {
+            return new LatLng(lat, lon);
+        }
+
+        public double getStartAltitude() {
+            return startAlt;
+        }
+
+        public double getAltitude() {
+            return alt;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The altitude gained since the start of the thermal.
+         */
+        public double getClimb() {
+            return alt - startAlt;
+        }
+
+        /**
+         * Computed the same way as Thermal: from the lowest to the highest fix so far.
+         * @return Climb rate in m/s.
+         */
+        public double getAverageClimbRate() {
+            return (maxAlt - minAlt) / ((double)(maxAltTime - minAltTime) / 1000.);
+        }
+
+        final String glider;
+        final double startLat, startLon, startAlt;
+        final long startTime;
+        double lat, lon, alt;
+        long time;
+        double minAlt, maxAlt;
+        long minAltTime, maxAltTime;
+        boolean started = false;
+    }
+
+    public LiveThermalDetector(String aGlider, Listener aListener) {
+        this(aGlider, aListener, Configuration.getConfig().LiveFixBufferSize);
+    }
+
+    public LiveThermalDetector(String aGlider, Listener aListener, int aBufferSize) {
+        glider = aGlider;
+        listener = aListener;
+        lat = new double[aBufferSize];
+        lon = new double[aBufferSize];
+        alt = new double[aBufferSize];
+        time = new long[aBufferSize];
+    }
+
+    /**
+     * Pushes the next fix of the glider. Fixes which are not newer than the
+     * previous fix are ignored.
+     * @param aLat
+     * @param aLon
+     * @param aAlt Altitude in meters.
+     * @param aTimeMillis
+     */
+    public void accept(double aLat, double aLon, double aAlt, long aTimeMillis) {
+        if(nextSeq > 0 && aTimeMillis <= time[index(nextSeq - 1)]) {
+            return;
+        }
+        long newestSeq = nextSeq++;
+        int newest = index(newestSeq);
+        lat[newest] = aLat;
+        lon[newest] = aLon;
+        alt[newest] = aAlt;
+        time[newest] = aTimeMillis;
+
+        // Advance the window start to the newest fix that is at least a minute old.
+        long oldestSeq = Math.max(0, nextSeq - lat.length);
+        if(windowSeq < oldestSeq) {
+            windowSeq = oldestSeq;
+        }
+        while(windowSeq + 1 < newestSeq && time[index(windowSeq + 1)] <= aTimeMillis - 60000) {
+            windowSeq++;
+        }
+        if(windowSeq == newestSeq) {
+            return;
+        }
+        if(time[index(windowSeq)] > aTimeMillis - 60000 && nextSeq <= lat.length) {
+            // Not yet a minute of data and the buffer is not full.
+            return;
+        }
+
+        int window = index(windowSeq);
+        double seconds = (double)(aTimeMillis - time[window]) / 1000.;
+        double speed = LatLngTool.distance(new LatLng(aLat, aLon), new LatLng(lat[window], lon[window]), LengthUnit.METER) / seconds;
+        double climb = (aAlt - alt[window]) * (60. / seconds);
+        Configuration config = Configuration.getConfig();
+        if(ThermalDetector.meetsRateRequirements(speed, climb, config.MaxSpeedInThermal, config.MinThermalClimbRate)) {
+            if(current == null) {
+                current = new LiveThermal(glider, lat[window], lon[window], alt[window], time[window]);
+                for(long seq = windowSeq + 1; seq <= newestSeq; seq++) {
+                    int i = index(seq);
+                    current.extend(lat[i], lon[i], alt[i], time[i]);
+                }
+            } else {
+                current.extend(aLat, aLon, aAlt, aTimeMillis);
+            }
+            if(current.started) {
+                listener.thermalUpdated(current);
+            } else if(current.getClimb() > config.MinThermalClimbDistance) {
+                current.started = true;
+                listener.thermalStarted(current);
+            }
+        } else if(current != null) {
+            // Like the batch detector, the fix that broke the requirements ends the thermal.
+            current.extend(aLat, aLon, aAlt, aTimeMillis);
+            if(!current.started && current.getClimb() > config.MinThermalClimbDistance) {
+                current.started = true;
+                listener.thermalStarted(current);
+            }
+            if(current.started) {
+                listener.thermalEnded(current);
+            }
+            current = null;
+        }
+    }
+
+    /**
+     * Called when no more fixes will arrive for the glider. A thermal in progress
+     * is ended.
+     */
+    public void close() {
+        if(current != null && current.started) {
+            listener.thermalEnded(current);
+        }
+        current = null;
+    }
+
+    /**
+     * @return The time of the newest fix, or Long.MIN_VALUE if none has arrived.
+     */
+    public long getLastFixTime() {
+        return nextSeq == 0 ? Long.MIN_VALUE : time[index(nextSeq - 1)];
+    }
+
+    private int index(long aSeq) {
+        return (int)(aSeq % lat.length);
+    }
+
+    final String glider;
+    final Listener listener;
+
+    // Ring buffer of the most recent fixes, addressed by sequence number.
+    final double[] lat;
+    final double[] lon;
+    final double[] alt;
+    final long[] time;
+    long nextSeq = 0;
+    long windowSeq = 0;
+
+    LiveThermal current;
+}
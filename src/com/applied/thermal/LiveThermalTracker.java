@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.applied.thermal.LiveThermalDetector.LiveThermal;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TimeZone;
+
+/**
+ * Tracks thermals for many gliders at once from a live position feed, keeping one
+ * LiveThermalDetector per glider. Gliders which have not been heard from for
+ * Configuration.LiveGliderTimeoutMillis are closed and dropped, so memory is
+ * bounded by the number of gliders flying at the same time.
+ *
+ * Not thread safe; a feed should be pushed from a single thread.
+ * @author James Betker
+ */
+public class LiveThermalTracker {
+    static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    public LiveThermalTracker(LiveThermalDetector.Listener aListener) {
+        listener = aListener;
+    }
+
+    /**
+     * Pushes a position of a glider.
+     * @param aGlider An identifier of the glider, such as its FLARM id.
+     * @param aLat
+     * @param aLon
+     * @param aAlt Altitude in meters.
+     * @param aTimeMillis
+     */
+    public void accept(String aGlider, double aLat, double aLon, double aAlt, long aTimeMillis) {
+        LiveThermalDetector detector = detectors.get(aGlider);
+        if(detector == null) {
+            detector = new LiveThermalDetector(aGlider, listener);
+            detectors.put(aGlider, detector);
+        }
+        detector.accept(aLat, aLon, aAlt, aTimeMillis);
+
+        long timeout = Configuration.getConfig().LiveGliderTimeoutMillis;
+        if(aTimeMillis - lastEvictionMillis > timeout / 4) {
+            evictIdle(aTimeMillis - timeout);
+            lastEvictionMillis = aTimeMillis;
+        }
+    }
+
+    /**
+     * Closes and drops every glider whose last fix is older than aCutoffMillis.
+     * @param aCutoffMillis
+     */
+    public void evictIdle(long aCutoffMillis) {
+        Iterator<LiveThermalDetector> it = detectors.values().iterator();
+        while(it.hasNext()) {
+            LiveThermalDetector detector = it.next();
+            if(detector.getLastFixTime() < aCutoffMillis) {
+                detector.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes every glider, ending any thermals in progress.
+     */
+    public void close() {
+        for(LiveThermalDetector detector : detectors.values()) {
+            detector.close();
+        }
+        detectors.clear();
+    }
+
+    public int getGliderCount() {
+        return detectors.size();
+    }
+
+    /**
+     * Replays a recorded feed, one position per line, then closes every glider.
+     * Two line formats are understood:
+     * 1) OGN APRS position reports, such as
+     *    "FLRDDA5BA>APRS,qAS,LFMX:/160829h4415.41N/00600.03E'342/049/A=005524 ... !W52!".
+     *    These only carry the UTC time of day, so aDayMillis gives the UTC midnight
+     *    of the first report. Later reports roll over to the next day when the time
+     *    of day jumps back by more than 12 hours.
+     * 2) Comma separated "glider,epochMillis,lat,lon,altMeters".
+     * Blank lines, lines starting with '#' (OGN server comments) and lines which
+     * are not position reports are skipped.
+     * @param aFile
+     * @param aDayMillis
+     * @throws IOException
+     */
+    public void replay(File aFile, long aDayMillis) throws IOException {
+        long lines = 0, positions = 0;
+        long start = System.currentTimeMillis();
+        long day = aDayMillis;
+        long lastTimeOfDay = -1;
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(aFile), StandardCharsets.US_ASCII))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines++;
+                if(line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                if(line.indexOf('>') > 0) {
+                    if(!parseAprs(line)) {
+                        continue;
+                    }
+                    if(lastTimeOfDay - position.time > DAY_MILLIS / 2) {
+                        day += DAY_MILLIS;
+                    }
+                    lastTimeOfDay = position.time;
+                    position.time += day;
+                } else if(!parseCsv(line)) {
+                    continue;
+                }
+                positions++;
+                accept(position.glider, position.lat, position.lon, position.alt, position.time);
+            }
+        }
+        close();
+        Logger.log("Replayed " + positions + " positions from " + lines + " lines of " + aFile.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Parses an OGN APRS position report into position. The time is left as
+     * milliseconds since UTC midnight.
+     * @param aLine
+     * @return false if the line is not a position report.
+     */
+    boolean parseAprs(String aLine) {
+        int body = aLine.indexOf(':');
+        if(body < 0 || body + 28 > aLine.length()) {
+            return false;
+        }
+        char type = aLine.charAt(body + 1);
+        if((type != '/' && type != '@') || aLine.charAt(body + 8) != 'h') {
+            return false;
+        }
+        try {
+            int hhmmss = Integer.parseInt(aLine.substring(body + 2, body + 8));
+            position.time = ((hhmmss / 10000) * 3600L + (hhmmss / 100 % 100) * 60L + hhmmss % 100) * 1000L;
+
+            // DDMM.mmN then a symbol table character, then DDDMM.mmE.
+            int latAt = body + 9;
+            double lat = Integer.parseInt(aLine.substring(latAt, latAt + 2)) + Double.parseDouble(aLine.substring(latAt + 2, latAt + 7)) / 60.;
+            char ns = aLine.charAt(latAt + 7);
+            int lonAt = latAt + 9;
+            double lon = Integer.parseInt(aLine.substring(lonAt, lonAt + 3)) + Double.parseDouble(aLine.substring(lonAt + 3, lonAt + 8)) / 60.;
+            char ew = aLine.charAt(lonAt + 8);
+            if((ns != 'N' && ns != 'S') || (ew != 'E' && ew != 'W')) {
+                return false;
+            }
+
+            // The optional !Wab! extension holds a third decimal for the minutes.
+            int dao = aLine.indexOf("!W", lonAt);
+            if(dao > 0 && dao + 4 < aLine.length() && aLine.charAt(dao + 4) == '!') {
+                lat += (aLine.charAt(dao + 2) - '0') / 60000.;
+                lon += (aLine.charAt(dao + 3) - '0') / 60000.;
+            }
+
+            int altAt = aLine.indexOf("/A=", lonAt);
+            if(altAt < 0 || altAt + 9 > aLine.length()) {
+                return false;
+            }
+            position.alt = Integer.parseInt(aLine.substring(altAt + 3, altAt + 9)) * 0.3048; // Feet
+            position.lat = ns == 'S' ? -lat : lat;
+            position.lon = ew == 'W' ? -lon : lon;
+            position.glider = aLine.substring(0, aLine.indexOf('>'));
+            return true;
+        } catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a "glider,epochMillis,lat,lon,altMeters" line into position.
+     * @param aLine
+     * @return false if the line is not a position.
+     */
+    boolean parseCsv(String aLine) {
+        String[] fields = aLine.split(",");
+        if(fields.length < 5) {
+            return false;
+        }
+        try {
+            position.time = Long.parseLong(fields[1].trim());
+            position.lat = Double.parseDouble(fields[2].trim());
+            position.lon = Double.parseDouble(fields[3].trim());
+            position.alt = Double.parseDouble(fields[4].trim());
+            position.glider = fields[0].trim();
+            return true;
+        } catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replays a recorded feed and logs the thermals found.
+     * @param args The feed file and, for APRS feeds, the UTC date as yyyy-MM-dd.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            Logger.err("Usage: LiveThermalTracker <feed file> [yyyy-MM-dd]");
+            return;
+        }
+        long day = 0;
+        if(args.length > 1) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                day = dateFormat.parse(args[1]).getTime();
+            } catch(ParseException e) {
+                Logger.err("Invalid date: " + args[1]);
+                return;
+            }
+        }
+        new LiveThermalTracker(new LiveThermalDetector.Listener() {
+            @Override
+            public void thermalStarted(LiveThermal aThermal) {
+                Logger.log(aThermal.getGlider() + " started thermalling at " + aThermal.getStartPosition());
+            }
+
+            @Override
+            public void thermalUpdated(LiveThermal aThermal) {
+            }
+
+            @Override
+            public void thermalEnded(LiveThermal aThermal) {
+                Logger.log(aThermal.getGlider() + " left a thermal after climbing " + Math.round(aThermal.getClimb()) + "m at " + aThermal.getAverageClimbRate() + "m/s");
+            }
+        }).replay(new File(args[0]), day);
+    }
+
+    // Reused by the parsers to avoid allocating per line.
+    static class Position {
+        String glider;
+        double lat, lon, alt;
+        long time;
+    }
+
+    final LiveThermalDetector.Listener listener;
+    final HashMap<String, LiveThermalDetector> detectors = new HashMap<>();
+    final Position position = new Position();
+    long lastEvictionMillis = Long.MIN_VALUE / 2;
+}
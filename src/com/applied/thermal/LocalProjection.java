@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.javadocmd.simplelatlng.LatLng;
+
+/**
+ * Projects latitudes and longitudes onto a local east-north plane in meters,
+ * centered on an origin. Distances, bearings and drift extrapolations then become
+ * plain arithmetic instead of spherical trigonometry.
+ *
+ * The projection is equirectangular about the origin: north is exact, east is
+ * scaled by cos(origin latitude). For two points near latitude lat, the relative
+ * error of the distance between them is at most about
+ * |tan(origin lat)| * |lat - origin lat| (in radians), plus a curvature term of
+ * (d / R)^2 which is below 1e-5 for the distances used in detection. A flight is
+ * projected about the center of its bounding box, so for a flight spanning 300km
+ * north to south at 35 degrees latitude, distances and speeds are within ~1.7% of
+ * the geodesic values (~0.3 m/s at the default MaxSpeedInThermal), and within ~2.8%
+ * at 50 degrees. Set Configuration.UsePlanarGeometry to false to use exact
+ * geodesics instead.
+ * @author James Betker
+ */
+public class LocalProjection {
+    // Mean earth radius, as used by SimpleLatLng.
+    public static final double EARTH_RADIUS_METERS = 6371009;
+    static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180.;
+
+    public LocalProjection(double aOriginLat, double aOriginLon) {
+        originLat = aOriginLat;
+        originLon = aOriginLon;
+        metersPerDegreeEast = METERS_PER_DEGREE * Math.cos(Math.toRadians(aOriginLat));
+    }
+
+    /**
+     * Creates a projection centered on the bounding box of aTrack.
+     * @param aTrack
+     * @return
+     */
+    public static LocalProjection forTrack(FlightTrack aTrack) {
+        if(aTrack.size() == 0) {
+            return new LocalProjection(0, 0);
+        }
+        double minLat = aTrack.lat(0), maxLat = minLat;
+        double minLon = aTrack.lon(0), maxLon = minLon;
+        for(int i = 1; i < aTrack.size(); i++) {
+            minLat = Math.min(minLat, aTrack.lat(i));
+            maxLat = Math.max(maxLat, aTrack.lat(i));
+            minLon = Math.min(minLon, aTrack.lon(i));
+            maxLon = Math.max(maxLon, aTrack.lon(i));
+        }
+        return new LocalProjection((minLat + maxLat) / 2, (minLon + maxLon) / 2);
+    }
+
+    /**
+     * @param aLon
+     * @return Meters east of the origin.
+     */
+    public double east(double aLon) {
+        double deltaLon = aLon - originLon;
+        if(deltaLon >= 180) deltaLon -= 360;
+        if(deltaLon < -180) deltaLon += 360;
+        return deltaLon * metersPerDegreeEast;
+    }
+
+    /**
+     * @param aLat
+     * @return Meters north of the origin.
+     */
+    public double north(double aLat) {
+        return (aLat - originLat) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Converts a point on the plane back into a latitude and longitude.
+     * @param aEast
+     * @param aNorth
+     * @return
+     */
+    public LatLng toLatLng(double aEast, double aNorth) {
+        return new LatLng(originLat + aNorth / METERS_PER_DEGREE, originLon + aEast / metersPerDegreeEast);
+    }
+
+    /**
+     * @return The distance in meters between two points on the plane.
+     */
+    public static double distance(double aEast1, double aNorth1, double aEast2, double aNorth2) {
+        double dEast = aEast2 - aEast1;
+        double dNorth = aNorth2 - aNorth1;
+        return Math.sqrt(dEast * dEast + dNorth * dNorth);
+    }
+
+    /**
+     * @return The bearing in degrees [0, 360) from the first point to the second point.
+     */
+    public static double bearing(double aEast1, double aNorth1, double aEast2, double aNorth2) {
+        double bearing = Math.toDegrees(Math.atan2(aEast2 - aEast1, aNorth2 - aNorth1));
+        return bearing < 0 ? bearing + 360 : bearing;
+    }
+
+    final double originLat;
+    final double originLon;
+    final double metersPerDegreeEast;
+}
@@ -20,6 +20,17 @@ import com.applied.thermal.types.ThermalCategory.ThermalSortingField;
 import com.applied.thermal.types.ThermalCategoryFactory;
 import com.applied.thermal.types.ThermalCollection;
 import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import de.micromata.opengis.kml.v_2_2_0.*;
 
 /**
@@ -28,27 +39,177 @@ import de.micromata.opengis.kml.v_2_2_0.*;
  */
 public class Main {
     
+    /**
+     * The ways in which the output KML can be written.
+     */
+    public enum OutputType {
+        Jak,        //! Built in memory with JAK and marshalled at the end.
+        Streaming,  //! Written with StreamingKmlWriter as categories are generated.
+        Kmz         //! A KMZ with one compressed KML per top-level category.
+    }
+    
     public static void main(String[] args) {
         System.out.println("Starting up..");
-        final Kml outputKml = new Kml();
-        Document doc = outputKml.createAndSetDocument().withName("Thermals").withOpen(true);
-        KmlFolderCategory.exportThermalStyleToKml(doc);
-        
-        ThermalCollection collection = new ThermalCollection();
+        if(Configuration.getConfig().FindHotspots && Configuration.getConfig().MaxThermalsInMemory > 0) {
+            // Hotspots are clustered from every thermal at once, which spilled thermals can't provide.
+            throw new IllegalArgumentException("FindHotspots requires MaxThermalsInMemory 0");
+        }
+        if(Configuration.getConfig().FlightCacheDirectory != null) {
+            flightCache = new FlightCache(new File(Configuration.getConfig().FlightCacheDirectory), Configuration.getConfig().CompressFlightCache);
+        }
+        flightFilter = FlightFilter.fromConfig(Configuration.getConfig());
+        if(Configuration.getConfig().UseFixArena) {
+            String directory = Configuration.getConfig().FixArenaDirectory;
+            Configuration.getConfig().setFixArena(new FixArena(Configuration.getConfig().FixArenaSegmentBytes, directory == null ? null : new File(directory)));
+        }
+        if(Configuration.getConfig().TerrainDirectory != null) {
+            Configuration.getConfig().setTerrain(new TerrainService(new File(Configuration.getConfig().TerrainDirectory), Configuration.getConfig().TerrainCacheTiles));
+        }
+        if(Configuration.getConfig().LiftMapFile != null) {
+            liftAggregates = new LiftAggregates(Configuration.getConfig().LiftMapPrecisions);
+        }
+        if(Configuration.getConfig().ThermalStoreDirectory != null) {
+            thermalStore = new ThermalStore(new File(Configuration.getConfig().ThermalStoreDirectory));
+        }
+        ThermalSortingField[] fields = { ThermalSortingField.ThermalStrength, ThermalSortingField.Month };
+        ThermalCollection collection = new ThermalCollection(fields, Configuration.getConfig().MaxThermalsInMemory);
         File dataFolder = new File("testdata");
+        ArrayList<File> kmlFiles = new ArrayList<>();
         for(File file : dataFolder.listFiles()) {
-            System.out.println("Processing " + file.getName());
             if(file.getName().endsWith(".kml")) {
-                OLCKmlRecord record = new OLCKmlRecord(file);
-                record.getFlight().computeThermalFixes();
-                for(Thermal thermal : record.getFlight().thermals) {
+                kmlFiles.add(file);
+            }
+        }
+        
+        if(Configuration.getConfig().IngestThreads <= 1) {
+            for(File file : kmlFiles) {
+                for(Thermal thermal : processFile(file)) {
                     collection.add(thermal);
                 }
             }
+        } else {
+            ingestInParallel(kmlFiles, collection);
+        }
+        if(thermalStore != null) {
+            thermalStore.retainOnly(kmlFiles);
+            thermalStore.save();
         }
         
-        ThermalSortingField[] fields = { ThermalSortingField.ThermalStrength, ThermalSortingField.Month };
-        collection.generateCategories(new ThermalCategoryFactory() {
+        if(liftAggregates != null) {
+            writeLiftAggregates(new File(Configuration.getConfig().LiftMapFile));
+            if(Configuration.getConfig().HeatmapDirectory != null) {
+                try {
+                    writeHeatmap(new File(Configuration.getConfig().HeatmapDirectory));
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        if(Configuration.getConfig().FindHotspots) {
+            try {
+                writeHotspots(collection.getThermals(), new File("hotspots.kml"));
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+        
+        Logger.log("Thermal detection: " + ThermalDetector.getFixesScanned() + " fixes at " + (long)ThermalDetector.getFixesPerSecond() + " fixes/s");
+        
+        OutputType output = Configuration.getConfig().KmlOutput;
+        File outputFile = new File(output == OutputType.Kmz ? "thermalOutput.kmz" : "thermalOutput.kml");
+        long start = System.currentTimeMillis();
+        try {
+            switch(output) {
+                case Jak:
+                    writeWithJak(collection, fields, outputFile);
+                    break;
+                case Streaming:
+                    writeStreaming(collection, fields, outputFile);
+                    break;
+                case Kmz:
+                    writeKmz(collection, fields, outputFile);
+                    break;
+            }
+            Logger.log("Wrote " + outputFile.getName() + " with " + output + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+        
+        System.out.println("Complete.");
+    }
+    
+    /**
+     * Merges the aggregates of Configuration.LiftMapInputs into liftAggregates and
+     * writes the result to aFile.
+     * @param aFile 
+     */
+    static void writeLiftAggregates(File aFile) {
+        String[] inputs = Configuration.getConfig().LiftMapInputs;
+        if(inputs != null) {
+            for(String input : inputs) {
+                liftAggregates.merge(LiftAggregates.read(new File(input)));
+            }
+        }
+        liftAggregates.write(aFile);
+        Logger.log("Wrote " + liftAggregates.size() + " lift cells to " + aFile.getName());
+    }
+    
+    /**
+     * Renders liftAggregates into a tile pyramid in aDirectory and writes
+     * heatmap.kml, which shows the tiles.
+     * @param aDirectory
+     * @throws Exception 
+     */
+    static void writeHeatmap(File aDirectory) throws Exception {
+        Configuration config = Configuration.getConfig();
+        long start = System.currentTimeMillis();
+        HeatmapRenderer renderer = new HeatmapRenderer(liftAggregates, config.HeatmapValue, config.HeatmapMinZoom, config.HeatmapMaxZoom, config.HeatmapMaxClimbRate);
+        ForkJoinPool pool = new ForkJoinPool(config.HeatmapThreads);
+        int tiles;
+        try {
+            tiles = renderer.render(aDirectory, pool);
+        } finally {
+            pool.shutdown();
+        }
+        String href = aDirectory.isAbsolute() ? aDirectory.toURI().toString() : aDirectory.getPath().replace(File.separatorChar, '/');
+        renderer.writeKml(new File("heatmap.kml"), href);
+        Logger.log("Rendered " + tiles + " heatmap tiles in " + (System.currentTimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Clusters aThermals into hotspots and writes each as a folder to aFile.
+     * @param aThermals
+     * @param aFile
+     * @throws Exception 
+     */
+    static void writeHotspots(List<Thermal> aThermals, File aFile) throws Exception {
+        Configuration config = Configuration.getConfig();
+        long start = System.currentTimeMillis();
+        HotspotClusterer clusterer = new HotspotClusterer(config.HotspotRadius, config.HotspotMinThermals, config.HotspotAnchor);
+        List<HotspotClusterer.Hotspot> hotspots = clusterer.cluster(aThermals);
+        try(StreamingKmlWriter writer = new StreamingKmlWriter(aFile, "Hotspots")) {
+            StreamingKmlCategory.exportThermalStyleToKml(writer);
+            for(int i = 0; i < hotspots.size(); i++) {
+                hotspots.get(i).exportToKml(writer, "Hotspot " + (i + 1));
+            }
+        }
+        Logger.log("Found " + hotspots.size() + " hotspots among " + aThermals.size() + " thermals in " + (System.currentTimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Builds the categorized output in memory with JAK and marshals it to aFile.
+     * @param aCollection
+     * @param aFields
+     * @param aFile
+     * @throws Exception 
+     */
+    static void writeWithJak(ThermalCollection aCollection, ThermalSortingField[] aFields, File aFile) throws Exception {
+        final Kml outputKml = new Kml();
+        Document doc = outputKml.createAndSetDocument().withName("Thermals").withOpen(true);
+        KmlFolderCategory.exportThermalStyleToKml(doc);
+        
+        aCollection.generateCategories(new ThermalCategoryFactory() {
             @Override
             public ThermalCategory createCategory(ThermalSortingField aField, String aTitle, ThermalCategory aParentCategory) {
                 if(aParentCategory == null) {
@@ -58,14 +219,187 @@ public class Main {
                 }
                 
             }
-        }, fields);
+        }, aFields);
 
+        outputKml.marshal(aFile);
+    }
+    
+    /**
+     * Writes the categorized output to aFile while the categories are generated.
+     * @param aCollection
+     * @param aFields
+     * @param aFile
+     * @throws Exception 
+     */
+    static void writeStreaming(ThermalCollection aCollection, ThermalSortingField[] aFields, File aFile) throws Exception {
+        try(StreamingKmlWriter writer = new StreamingKmlWriter(aFile, "Thermals")) {
+            StreamingKmlCategory.exportThermalStyleToKml(writer);
+            aCollection.generateCategories(new StreamingKmlCategory.Factory(writer), aFields);
+        }
+    }
+    
+    /**
+     * Writes the categorized output to a KMZ archive at aFile, with one entry per
+     * top-level category.
+     * @param aCollection
+     * @param aFields
+     * @param aFile
+     * @throws Exception 
+     */
+    static void writeKmz(ThermalCollection aCollection, ThermalSortingField[] aFields, File aFile) throws Exception {
+        try(KmzWriter kmz = new KmzWriter(aFile, "Thermals")) {
+            aCollection.generateCategories(new StreamingKmlCategory.KmzFactory(kmz), aFields);
+        }
+    }
+    
+    /**
+     * Parses a single KML file, or loads it from flightCache, and runs thermal 
+     * detection on it. If thermalStore holds the thermals of an unchanged file,
+     * those are returned instead. Files rejected by flightFilter are skipped
+     * after a prescan of their header. The thermals are added to liftAggregates.
+     * @param aFile
+     * @return The thermals found in the flight.
+     */
+    static List<Thermal> processFile(File aFile) {
+        OLCKmlHeader header = null;
+        if(flightFilter != null) {
+            header = OLCKmlHeader.read(aFile, flightFilter.needsBounds());
+            if(header != null && !flightFilter.accepts(header)) {
+                return Collections.emptyList();
+            }
+        }
+        // Without a header the filter needs the whole flight, which the store does not keep.
+        if(thermalStore != null && (flightFilter == null || header != null)) {
+            List<Thermal> stored = thermalStore.get(aFile);
+            if(stored != null) {
+                aggregate(stored);
+                return stored;
+            }
+        }
+        System.out.println("Processing " + aFile.getName());
+        Flight flight = flightCache == null ? null : flightCache.get(aFile);
+        if(flight == null) {
+            flight = new OLCKmlRecord(aFile).getFlight();
+            if(flightCache != null && flight != null) {
+                flightCache.put(aFile, flight);
+            }
+        }
+        // With a fix arena, the reader or the cache has put the fixes straight into it.
+        ArenaFlightTrack arenaTrack = flight.track instanceof ArenaFlightTrack ? (ArenaFlightTrack)flight.track : null;
         try {
-            outputKml.marshal(new File("thermalOutput.kml"));
-        } catch(Exception e) {
-            e.printStackTrace();
+            if(flightFilter != null && header == null && !flightFilter.accepts(flight)) {
+                return Collections.emptyList();
+            }
+            if(arenaTrack == null) {
+                flight.track = FlightTrack.compact(flight.track);
+            }
+            flight.computeThermalFixes();
+        } finally {
+            // Thermals copy their own fixes, so the flight is done with the arena.
+            if(arenaTrack != null) {
+                arenaTrack.release();
+            }
+        }
+        if(thermalStore != null) {
+            thermalStore.put(aFile, flight);
+        }
+        aggregate(flight.thermals);
+        return flight.thermals;
+    }
+    
+    private static void aggregate(List<Thermal> aThermals) {
+        if(liftAggregates != null) {
+            for(Thermal thermal : aThermals) {
+                liftAggregates.add(thermal);
+            }
+        }
+    }
+    
+    // Set up by main() if Configuration.FlightCacheDirectory is set.
+    static FlightCache flightCache;
+    // Set up by main() if any of the Configuration.Filter* fields are set.
+    static FlightFilter flightFilter;
+    // Set up by main() if Configuration.ThermalStoreDirectory is set.
+    static ThermalStore thermalStore;
+    // Set up by main() if Configuration.LiftMapFile is set.
+    static LiftAggregates liftAggregates;
+    
+    /**
+     * Parses and runs detection on all of aFiles on a worker pool. The largest files
+     * are scheduled first so that a single huge flight does not end up running alone
+     * at the end. Thermals are added to aCollection in the order of aFiles once every
+     * file is complete, so the result is identical to a serial run.
+     * @param aFiles
+     * @param aCollection 
+     */
+    static void ingestInParallel(List<File> aFiles, ThermalCollection aCollection) {
+        final int threads = Configuration.getConfig().IngestThreads;
+        ExecutorService executor = null;
+        Semaphore permits = null;
+        if(Configuration.getConfig().UseVirtualThreads) {
+            executor = createVirtualThreadExecutor();
+            if(executor != null) {
+                // Virtual threads are unbounded; detection is CPU bound so limit how many run at once.
+                permits = new Semaphore(threads, true);
+            } else {
+                Logger.err("Virtual threads are not supported by this JVM, using a fixed thread pool.");
+            }
+        }
+        if(executor == null) {
+            executor = Executors.newFixedThreadPool(threads);
         }
         
-        System.out.println("Complete.");
+        Integer[] bySize = new Integer[aFiles.size()];
+        for(int i = 0; i < bySize.length; i++) {
+            bySize[i] = i;
+        }
+        Arrays.sort(bySize, (a, b) -> Long.compare(aFiles.get(b).length(), aFiles.get(a).length()));
+        
+        ArrayList<Future<List<Thermal>>> results = new ArrayList<>(Collections.nCopies(aFiles.size(), (Future<List<Thermal>>)null));
+        final Semaphore taskPermits = permits;
+        for(int index : bySize) {
+            final File file = aFiles.get(index);
+            results.set(index, executor.submit(() -> {
+                if(taskPermits == null) {
+                    return processFile(file);
+                }
+                taskPermits.acquire();
+                try {
+                    return processFile(file);
+                } finally {
+                    taskPermits.release();
+                }
+            }));
+        }
+        executor.shutdown();
+        
+        try {
+            for(int i = 0; i < results.size(); i++) {
+                for(Thermal thermal : results.get(i).get()) {
+                    aCollection.add(thermal);
+                }
+                // aCollection may spill what it has been given, so let go of it here.
+                results.set(i, null);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * Creates a virtual-thread-per-task executor if the running JDK supports it.
+     * @return The executor, or null on JDKs without virtual threads.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+/**
+ * Receives the pieces of an OLC KML export that are needed to build a Flight.
+ * Readers call these in document order.
+ * @author James Betker
+ */
+interface OLCKmlHandler {
+    /**
+     * Called with the raw text of the document description, which holds the
+     * date, pilot and airplane.
+     * @param aDescription
+     */
+    public void onDescription(String aDescription);
+
+    /**
+     * Called for every coordinate of the '#polyline' placemark, which holds the
+     * entire flight path.
+     * @param aLon
+     * @param aLat
+     * @param aAlt
+     */
+    public void onTrackCoordinate(double aLon, double aLat, double aAlt);
+
+    /**
+     * Returns the scanner that readers parsing '#polyline' coordinates in bulk
+     * append them to, in place of calling onTrackCoordinate for each of them.
+     * @return A scanner owned by the handler, which keeps the coordinates.
+     */
+    public KmlCoordinateScanner trackScanner();
+
+    /**
+     * Called for every placemark found in the "fixes" folder.
+     * @param aLon
+     * @param aLat
+     * @param aAlt
+     * @param aWhen The TimeStamp of the placemark as found in the document, or null if it has none.
+     */
+    public void onFixPlacemark(double aLon, double aLat, double aAlt, String aWhen);
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+/**
+ * The header of an OLC KML export, read without parsing its track, so that
+ * flights can be filtered before the expensive coordinate parse.
+ *
+ * The date, pilot and airplane come from the Document description at the start
+ * of the file. The bounds of the track are estimated from the "fixes" folder at
+ * the end of the file, which holds one fix per minute: the box around those
+ * fixes is widened by the largest step between two of them, since the track may
+ * stray that far between fixes. Only the pages of the mapped file holding these
+ * two sections are touched.
+ * @author James Betker
+ */
+public class OLCKmlHeader {
+
+    /**
+     * Reads the header of aKml.
+     * @param aKml
+     * @param aBounds Whether to also estimate the bounds of the track.
+     * @return The header, or null if aKml does not have the layout of an OLC
+     *         export and can only be filtered once it is parsed.
+     */
+    public static OLCKmlHeader read(File aKml, boolean aBounds) {
+        try(FileChannel channel = FileChannel.open(aKml.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            OLCKmlHeader header = new OLCKmlHeader();
+            if(!header.readDescription(buffer) || (aBounds && !header.readBounds(buffer))) {
+                return null;
+            }
+            return header;
+        } catch(IOException e) {
+            Logger.err("Unable to prescan " + aKml.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    private boolean readDescription(ByteBuffer aBuffer) {
+        int end = aBuffer.limit();
+        int descStart = OLCKmlMappedReader.indexOf(aBuffer, OLCKmlMappedReader.DESCRIPTION_START, 0, end);
+        if(descStart == -1) {
+            return false;
+        }
+        int contentStart = descStart + OLCKmlMappedReader.DESCRIPTION_START.length;
+        int contentEnd = OLCKmlMappedReader.indexOf(aBuffer, OLCKmlMappedReader.DESCRIPTION_END, contentStart, end);
+        if(contentEnd == -1) {
+            return false;
+        }
+        String description = OLCKmlMappedReader.decodeText(aBuffer, contentStart, contentEnd);
+        try {
+            date = OLCKmlRecord.parseDate(description);
+        } catch(Exception e) {
+            // OLCKmlRecord falls back to the epoch as well.
+            date = new Date(0);
+        }
+        pilot = OLCKmlRecord.extractField(description, "pilot:", "&nbsp;");
+        airplane = OLCKmlRecord.extractField(description, "airplane:", "&nbsp;");
+        return true;
+    }
+
+    private boolean readBounds(ByteBuffer aBuffer) {
+        int end = aBuffer.limit();
+        // The fixes folder is the last part of the document, so search for it backwards.
+        int fixesStart = lastIndexOf(aBuffer, OLCKmlMappedReader.FIXES_NAME, 0, end);
+        if(fixesStart == -1) {
+            return false;
+        }
+        int fixesEnd = OLCKmlMappedReader.indexOf(aBuffer, OLCKmlMappedReader.FOLDER_END, fixesStart, end);
+        if(fixesEnd == -1) {
+            return false;
+        }
+
+        KmlCoordinateScanner scanner = new KmlCoordinateScanner(256);
+        int pos = fixesStart;
+        while((pos = OLCKmlMappedReader.indexOf(aBuffer, OLCKmlMappedReader.COORDINATES_START, pos, fixesEnd)) != -1) {
+            pos += OLCKmlMappedReader.COORDINATES_START.length;
+            int coordEnd = OLCKmlMappedReader.indexOf(aBuffer, OLCKmlMappedReader.COORDINATES_END, pos, fixesEnd);
+            if(coordEnd == -1) {
+                return false;
+            }
+            scanner.scan(aBuffer, pos, coordEnd);
+            pos = coordEnd;
+        }
+        if(scanner.count == 0) {
+            return false;
+        }
+
+        north = south = scanner.lat[0];
+        east = west = scanner.lon[0];
+        double latStep = 0, lonStep = 0;
+        for(int i = 1; i < scanner.count; i++) {
+            north = Math.max(north, scanner.lat[i]);
+            south = Math.min(south, scanner.lat[i]);
+            east = Math.max(east, scanner.lon[i]);
+            west = Math.min(west, scanner.lon[i]);
+            latStep = Math.max(latStep, Math.abs(scanner.lat[i] - scanner.lat[i - 1]));
+            lonStep = Math.max(lonStep, Math.abs(scanner.lon[i] - scanner.lon[i - 1]));
+        }
+        north += latStep;
+        south -= latStep;
+        east += lonStep;
+        west -= lonStep;
+        hasBounds = true;
+        return true;
+    }
+
+    /**
+     * Finds the last occurrence of aPattern within [aFrom, aTo) of aBuffer.
+     * @return Index of the first byte of the match, or -1.
+     */
+    static int lastIndexOf(ByteBuffer aBuffer, byte[] aPattern, int aFrom, int aTo) {
+        byte first = aPattern[0];
+        outer:
+        for(int i = aTo - aPattern.length; i >= aFrom; i--) {
+            if(aBuffer.get(i) != first) continue;
+            for(int j = 1; j < aPattern.length; j++) {
+                if(aBuffer.get(i + j) != aPattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getPilot() {
+        return pilot;
+    }
+
+    public String getAirplane() {
+        return airplane;
+    }
+
+    Date date;
+    String pilot;
+    String airplane;
+    boolean hasBounds = false;
+    double north, south, east, west;
+}
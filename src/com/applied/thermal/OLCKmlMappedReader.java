@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads an OLC KML export by memory-mapping the file and scanning its bytes for
+ * the few sections that are needed, without running an XML parser at all. This
+ * relies on the layout that OLC writes: a single Document description, the track
+ * in a placemark with a '#polyline' styleUrl and a folder named "fixes" whose
+ * placemarks carry the timestamps.
+ *
+ * Files that do not match this layout cause an IOException so that the caller
+ * can fall back to a real XML parser.
+ * @author James Betker
+ */
+class OLCKmlMappedReader {
+
+    static final byte[] DESCRIPTION_START = ascii("<description>");
+    static final byte[] DESCRIPTION_END = ascii("</description>");
+    static final byte[] CDATA_START = ascii("<![CDATA[");
+    static final byte[] CDATA_END = ascii("]]>");
+    static final byte[] POLYLINE_STYLE = ascii("<styleUrl>#polyline</styleUrl>");
+    static final byte[] PLACEMARK_END = ascii("</Placemark>");
+    static final byte[] COORDINATES_START = ascii("<coordinates>");
+    static final byte[] COORDINATES_END = ascii("</coordinates>");
+    static final byte[] FIXES_NAME = ascii("<name>fixes</name>");
+    // Start tags may carry attributes, so these are matched through indexOfElement().
+    static final byte[] FOLDER_START = ascii("<Folder");
+    static final byte[] FOLDER_END = ascii("</Folder>");
+    static final byte[] PLACEMARK_START = ascii("<Placemark");
+    static final byte[] WHEN_START = ascii("<when>");
+    static final byte[] WHEN_END = ascii("</when>");
+
+    /**
+     * Scans the specified file into aHandler.
+     * @param aKml
+     * @param aHandler
+     * @throws IOException If the file could not be read or does not have the expected layout.
+     */
+    public static void read(File aKml, OLCKmlHandler aHandler) throws IOException {
+        try(FileChannel channel = FileChannel.open(aKml.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + aKml.getAbsolutePath());
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            read(buffer, aHandler);
+        }
+    }
+
+    static void read(ByteBuffer aBuffer, OLCKmlHandler aHandler) throws IOException {
+        int end = aBuffer.limit();
+
+        // The Document description holds the header fields and comes before any feature.
+        int descStart = indexOf(aBuffer, DESCRIPTION_START, 0, end);
+        if(descStart != -1) {
+            int contentStart = descStart + DESCRIPTION_START.length;
+            int contentEnd = indexOf(aBuffer, DESCRIPTION_END, contentStart, end);
+            if(contentEnd == -1) throw new IOException("Unterminated description");
+            aHandler.onDescription(decodeText(aBuffer, contentStart, contentEnd));
+        }
+
+        // Every '#polyline' placemark contributes to the track, in document order.
+        KmlCoordinateScanner scanner = aHandler.trackScanner();
+        int pos = 0;
+        boolean foundPolyline = false;
+        while((pos = indexOf(aBuffer, POLYLINE_STYLE, pos, end)) != -1) {
+            int placemarkEnd = indexOf(aBuffer, PLACEMARK_END, pos, end);
+            int coordStart = indexOf(aBuffer, COORDINATES_START, pos, end);
+            if(placemarkEnd == -1 || coordStart == -1 || coordStart > placemarkEnd) {
+                throw new IOException("Polyline placemark without coordinates");
+            }
+            coordStart += COORDINATES_START.length;
+            int coordEnd = indexOf(aBuffer, COORDINATES_END, coordStart, placemarkEnd);
+            if(coordEnd == -1) throw new IOException("Unterminated polyline coordinates");
+            scanner.scan(aBuffer, coordStart, coordEnd);
+            foundPolyline = true;
+            pos = placemarkEnd;
+        }
+        if(!foundPolyline) throw new IOException("No polyline placemark found");
+
+        // The fixes folder holds one point placemark per timestamp and no sub-folders.
+        int fixesStart = indexOf(aBuffer, FIXES_NAME, 0, end);
+        if(fixesStart == -1) throw new IOException("No fixes folder found");
+        int fixesEnd = indexOf(aBuffer, FOLDER_END, fixesStart, end);
+        if(fixesEnd == -1) throw new IOException("Unterminated fixes folder");
+        int nestedFolder = indexOfElement(aBuffer, FOLDER_START, fixesStart, fixesEnd);
+        if(nestedFolder != -1) throw new IOException("Unexpected folder inside of the fixes folder");
+
+        KmlCoordinateScanner fixScanner = new KmlCoordinateScanner(1);
+        int timestamped = 0;
+        pos = fixesStart;
+        while((pos = indexOfElement(aBuffer, PLACEMARK_START, pos, fixesEnd)) != -1) {
+            int placemarkEnd = indexOf(aBuffer, PLACEMARK_END, pos, fixesEnd);
+            if(placemarkEnd == -1) throw new IOException("Unterminated fix placemark");
+            fixScanner.count = 0;
+            int coordStart = indexOf(aBuffer, COORDINATES_START, pos, placemarkEnd);
+            if(coordStart != -1) {
+                coordStart += COORDINATES_START.length;
+                int coordEnd = indexOf(aBuffer, COORDINATES_END, coordStart, placemarkEnd);
+                if(coordEnd == -1) throw new IOException("Unterminated fix coordinates");
+                fixScanner.scan(aBuffer, coordStart, coordEnd);
+            }
+            String when = null;
+            int whenStart = indexOf(aBuffer, WHEN_START, pos, placemarkEnd);
+            if(whenStart != -1) {
+                whenStart += WHEN_START.length;
+                int whenEnd = indexOf(aBuffer, WHEN_END, whenStart, placemarkEnd);
+                if(whenEnd == -1) throw new IOException("Unterminated fix timestamp");
+                when = decodeText(aBuffer, whenStart, whenEnd).trim();
+                timestamped++;
+            }
+            if(fixScanner.count > 0) {
+                aHandler.onFixPlacemark(fixScanner.lon[0], fixScanner.lat[0], fixScanner.alt[0], when);
+            } else {
+                aHandler.onFixPlacemark(0, 0, 0, when);
+            }
+            pos = placemarkEnd;
+        }
+        // Leave files laid out differently than expected to the XML parsers.
+        if(timestamped == 0) throw new IOException("No timestamped fix placemarks found");
+    }
+
+    /**
+     * Finds the first occurrence of aPattern within [aFrom, aTo) of aBuffer.
+     * @return Index of the first byte of the match, or -1.
+     */
+    static int indexOf(ByteBuffer aBuffer, byte[] aPattern, int aFrom, int aTo) {
+        byte first = aPattern[0];
+        int last = aTo - aPattern.length;
+        outer:
+        for(int i = aFrom; i <= last; i++) {
+            if(aBuffer.get(i) != first) continue;
+            for(int j = 1; j < aPattern.length; j++) {
+                if(aBuffer.get(i + j) != aPattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first start tag of an element within [aFrom, aTo) of aBuffer,
+     * with or without attributes.
+     * @param aTagStart The '<' and name of the element.
+     * @return Index of the '<' of the tag, or -1.
+     */
+    static int indexOfElement(ByteBuffer aBuffer, byte[] aTagStart, int aFrom, int aTo) {
+        int pos = aFrom;
+        while((pos = indexOf(aBuffer, aTagStart, pos, aTo)) != -1) {
+            int next = pos + aTagStart.length;
+            if(next < aTo) {
+                byte b = aBuffer.get(next);
+                if(b == '>' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    return pos;
+                }
+            }
+            pos = next;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes XML character data, either a CDATA section or escaped text.
+     */
+    static String decodeText(ByteBuffer aBuffer, int aStart, int aEnd) {
+        int cdataStart = indexOf(aBuffer, CDATA_START, aStart, aEnd);
+        if(cdataStart != -1) {
+            int contentStart = cdataStart + CDATA_START.length;
+            int contentEnd = indexOf(aBuffer, CDATA_END, contentStart, aEnd);
+            if(contentEnd == -1) contentEnd = aEnd;
+            return utf8(aBuffer, contentStart, contentEnd);
+        }
+        return utf8(aBuffer, aStart, aEnd)
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    private static String utf8(ByteBuffer aBuffer, int aStart, int aEnd) {
+        byte[] bytes = new byte[aEnd - aStart];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = aBuffer.get(aStart + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ascii(String aString) {
+        return aString.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -26,7 +26,9 @@ import de.micromata.opengis.kml.v_2_2_0.Folder;
 import de.micromata.opengis.kml.v_2_2_0.TimeStamp;
 import de.micromata.opengis.kml.v_2_2_0.Point;
 import java.io.File;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
 
@@ -36,67 +38,275 @@ import java.util.TimeZone;
  */
 public class OLCKmlRecord {
     
+    /**
+     * The parser used to read the KML file.
+     */
+    public enum ParserType {
+        Jak,        //! Unmarshals the entire document with JAK.
+        Streaming,  //! Pulls only the description, track and fix timestamps with StAX. Falls back to JAK on failure.
+        Mapped      //! Scans the memory-mapped file bytes directly. Falls back to Streaming on failure.
+    }
+    
     public OLCKmlRecord(File aKml) {
-        Date date;
-        String pilot, airplane;
-        Kml kml = Kml.unmarshal(aKml);
-        Document doc = (Document)kml.getFeature();
-        Placemark firstFix = null;
-        Placemark lastFix = null;
-        long flightTimeMs = 0;
-        
-        // Attempt to process data out of the description.
-        String dateString = extractField(doc.getDescription(), "date:", "&nbsp;");
+        this(aKml, Configuration.getConfig().KmlParser);
+    }
+    
+    public OLCKmlRecord(File aKml, ParserType aParser) {
+        file = aKml;
+        trackCoordinates.count = 0;
+        long startMs = System.currentTimeMillis();
+        if(aParser == ParserType.Mapped) {
+            try {
+                OLCKmlMappedReader.read(aKml, new RecordHandler());
+            } catch(Exception e) {
+                Logger.err("Mapped scan failed for file " + aKml.getAbsolutePath() + " (" + e.getMessage() + "), falling back to streaming.");
+                reset();
+                aParser = ParserType.Streaming;
+            }
+        }
+        if(aParser == ParserType.Streaming) {
+            try {
+                OLCKmlStreamReader.read(aKml, new RecordHandler());
+            } catch(Exception e) {
+                Logger.err("Streaming parse failed for file " + aKml.getAbsolutePath() + ", falling back to JAK.");
+                e.printStackTrace();
+                reset();
+                aParser = ParserType.Jak;
+            }
+        }
+        if(aParser == ParserType.Jak) {
+            readWithJak(aKml);
+        }
+        Logger.log("Parsed " + aKml.getName() + " with " + aParser + " in " + (System.currentTimeMillis() - startMs) + "ms");
+        if(mFlight == null) {
+            // No description was found; the header fields fall back to their defaults.
+            processDescription("");
+        }
+        mFlight.track = buildTrack();
         try {
-            date = (new SimpleDateFormat("dd/MM/yyyy")).parse(dateString);
-        } catch(Exception e) {
-            System.out.println("Error processing date for file " + aKml.getAbsolutePath());
-            e.printStackTrace();
-            date = new Date(0);
+            assignFixTimes();
+        } catch(RuntimeException e) {
+            if(mFlight.track instanceof ArenaFlightTrack) {
+                ((ArenaFlightTrack)mFlight.track).release();
+            }
+            throw e;
         }
-        pilot = extractField(doc.getDescription(), "pilot:", "&nbsp;");
-        airplane = extractField(doc.getDescription(), "airplane:", "&nbsp;");
-        System.out.println("Processed KML header data. Date: " + date.toString() + " Pilot: " + pilot + " Airplane: " + airplane);
-        
-        mFlight = new Flight(date, pilot, airplane);
+    }
+    
+    /**
+     * Moves the track coordinates that were read into a track of their own: into
+     * the fix arena if there is one, so that the flight never has arrays of its
+     * own, or into an ArrayFlightTrack of exactly their size otherwise.
+     */
+    private FlightTrack buildTrack() {
+        KmlCoordinateScanner coordinates = trackCoordinates;
+        FixArena arena = Configuration.getConfig().getFixArena();
+        if(arena != null) {
+            return arena.store(coordinates.lat, coordinates.lon, coordinates.alt, coordinates.count);
+        }
+        FlightTrack track = new ArrayFlightTrack(coordinates.count);
+        track.addAll(coordinates.lat, coordinates.lon, coordinates.alt, coordinates.count);
+        return track;
+    }
+    
+    /**
+     * Discards anything a failed reader has produced so far.
+     */
+    private void reset() {
+        mFlight = null;
+        trackCoordinates.count = 0;
+        fixCount = 0;
+        trackIndex = null;
+    }
+    
+    /**
+     * Unmarshals the entire document with JAK and feeds the relevant parts of it
+     * through the same handler as the streaming reader.
+     * @param aKml 
+     */
+    private void readWithJak(File aKml) {
+        Kml kml = Kml.unmarshal(aKml);
+        Document doc = (Document)kml.getFeature();
+        OLCKmlHandler handler = new RecordHandler();
         
+        handler.onDescription(doc.getDescription());
         for(Feature f : doc.getFeature()) {
             // The '#polyline' placemark will generally contain the entire flight path.
             if(f.getStyleUrl() != null && f.getStyleUrl().equals("#polyline")) {
                 Placemark p = (Placemark)f;
                 LineString ls = (LineString)p.getGeometry();
-                FlightFix fix;
                 for(Coordinate c : ls.getCoordinates()) {
-                    fix = new FlightFix();
-                    fix.alt = c.getAltitude();
-                    fix.pos = new LatLng(c.getLatitude(), c.getLongitude());
-                    mFlight.addFix(fix);
+                    handler.onTrackCoordinate(c.getLongitude(), c.getLatitude(), c.getAltitude());
                 }
             }
             
-            // The polylines contain fixes generated by the pilots recording device, but
-            // do not contain timestamps. Placemarks found in the "fixes" folder have timestamps,
-            // but are regularly spaced out at 1 minute intervals and do not necessarily line
-            // up with the aforementioned polylines. The polylines are regularly spaced, though, and
-            // we can calculate times for them from the fixes by finding the first fix time and
-            // the last fix time and extrapolating.
             if(f.getName() != null && f.getName().equals("fixes")) {
                 Folder folder = (Folder)f;
-                firstFix = (Placemark)folder.getFeature().get(0);
-                lastFix = (Placemark)folder.getFeature().get(folder.getFeature().size() - 1);
-                flightTimeMs = (placemarkToDatetime(lastFix).getTime() - placemarkToDatetime(firstFix).getTime());
+                for(Feature fixFeature : folder.getFeature()) {
+                    if(!(fixFeature instanceof Placemark)) continue;
+                    Placemark fix = (Placemark)fixFeature;
+                    TimeStamp stamp = (TimeStamp)fix.getTimePrimitive();
+                    Coordinate c = ((Point)fix.getGeometry()).getCoordinates().get(0);
+                    handler.onFixPlacemark(c.getLongitude(), c.getLatitude(), c.getAltitude(), 
+                                           stamp == null ? null : stamp.getWhen());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Attempts to process the date, pilot and airplane out of the document description
+     * and creates the Flight from them.
+     * @param aDescription 
+     */
+    private void processDescription(String aDescription) {
+        Date date;
+        String pilot, airplane;
+        try {
+            date = parseDate(aDescription);
+        } catch(Exception e) {
+            System.out.println("Error processing date for file " + file.getAbsolutePath());
+            e.printStackTrace();
+            date = new Date(0);
+        }
+        pilot = extractField(aDescription, "pilot:", "&nbsp;");
+        airplane = extractField(aDescription, "airplane:", "&nbsp;");
+        System.out.println("Processed KML header data. Date: " + date.toString() + " Pilot: " + pilot + " Airplane: " + airplane);
+        
+        // The track is only built once all of it is read.
+        mFlight = new Flight(date, pilot, airplane, null);
+    }
+    
+    /**
+     * The polylines contain fixes generated by the pilots recording device, but
+     * do not contain timestamps. Placemarks found in the "fixes" folder have timestamps,
+     * and are spaced out at 1 minute intervals at positions taken from the polyline.
+     * Every placemark is located in the polyline through a TrackIndex, in order, and
+     * the polyline fixes between two such anchors are given times interpolated 
+     * between theirs, so gaps in the recording do not distort climb rates. Fixes 
+     * before the first and after the last anchor are extrapolated at the average 
+     * rate. If fewer than two placemarks can be located, the polyline is assumed to
+     * be evenly spaced between the first and last placemark times.
+     */
+    private void assignFixTimes() {
+        FlightTrack track = mFlight.track;
+        trackIndex = new TrackIndex(track);
+        int[] anchorIndex = new int[fixCount];
+        long[] anchorTime = new long[fixCount];
+        int anchors = 0;
+        for(int f = 0; f < fixCount; f++) {
+            if(fixTime[f] == Long.MIN_VALUE || (anchors > 0 && fixTime[f] <= anchorTime[anchors - 1])) {
+                continue;
+            }
+            int index = trackIndex.next(fixLat[f], fixLon[f], fixAlt[f], anchors == 0 ? -1 : anchorIndex[anchors - 1]);
+            if(index != -1) {
+                anchorIndex[anchors] = index;
+                anchorTime[anchors] = fixTime[f];
+                anchors++;
             }
         }
         
-        // With all the flight fixes extracted, give them timestamps.
-        long timePerFixMs = flightTimeMs / mFlight.numFixes();
-        Logger.log("Flight time per fix: " + timePerFixMs);
-        for(int i = 0; i < mFlight.numFixes(); i++) {
-            mFlight.fix(i).time = new Date(placemarkToDatetime(firstFix).getTime() + timePerFixMs * i);
+        if(anchors < 2) {
+            Logger.err("Unable to align the fixes of " + file.getName() + " with its track, spacing fixes evenly.");
+            long firstFixMs = firstFixTime();
+            long flightTimeMs = lastFixTime() - firstFixMs;
+            long timePerFixMs = flightTimeMs / mFlight.numFixes();
+            Logger.log("Flight time per fix: " + timePerFixMs);
+            for(int i = 0; i < track.size(); i++) {
+                track.setTime(i, firstFixMs + timePerFixMs * i);
+            }
+        } else {
+            double averageMsPerFix = (double)(anchorTime[anchors - 1] - anchorTime[0]) / (anchorIndex[anchors - 1] - anchorIndex[0]);
+            Logger.log("Flight time per fix: " + (long)averageMsPerFix + " (" + anchors + " of " + fixCount + " fixes aligned)");
+            for(int i = 0; i < anchorIndex[0]; i++) {
+                track.setTime(i, anchorTime[0] - Math.round((anchorIndex[0] - i) * averageMsPerFix));
+            }
+            for(int a = 1; a < anchors; a++) {
+                int fromIndex = anchorIndex[a - 1], toIndex = anchorIndex[a];
+                long fromTime = anchorTime[a - 1], span = anchorTime[a] - fromTime;
+                for(int i = fromIndex; i < toIndex; i++) {
+                    track.setTime(i, fromTime + span * (i - fromIndex) / (toIndex - fromIndex));
+                }
+            }
+            int last = anchorIndex[anchors - 1];
+            for(int i = last; i < track.size(); i++) {
+                track.setTime(i, anchorTime[anchors - 1] + Math.round((i - last) * averageMsPerFix));
+            }
+        }
+        track.trimToSize();
+    }
+    
+    private long firstFixTime() {
+        for(int f = 0; f < fixCount; f++) {
+            if(fixTime[f] != Long.MIN_VALUE) {
+                return fixTime[f];
+            }
+        }
+        throw new IllegalStateException("No timestamped fixes found in " + file.getAbsolutePath());
+    }
+    
+    private long lastFixTime() {
+        for(int f = fixCount - 1; f >= 0; f--) {
+            if(fixTime[f] != Long.MIN_VALUE) {
+                return fixTime[f];
+            }
+        }
+        throw new IllegalStateException("No timestamped fixes found in " + file.getAbsolutePath());
+    }
+    
+    /**
+     * Receives the document parts from whichever reader is in use.
+     */
+    private class RecordHandler implements OLCKmlHandler {
+        @Override
+        public void onDescription(String aDescription) {
+            processDescription(aDescription == null ? "" : aDescription);
         }
+
+        @Override
+        public void onTrackCoordinate(double aLon, double aLat, double aAlt) {
+            if(mFlight == null) {
+                processDescription("");
+            }
+            trackCoordinates.add(aLon, aLat, aAlt);
+        }
+
+        @Override
+        public KmlCoordinateScanner trackScanner() {
+            if(mFlight == null) {
+                processDescription("");
+            }
+            return trackCoordinates;
+        }
+
+        @Override
+        public void onFixPlacemark(double aLon, double aLat, double aAlt, String aWhen) {
+            if(fixCount == fixLat.length) {
+                int capacity = fixCount * 2;
+                fixLat = Arrays.copyOf(fixLat, capacity);
+                fixLon = Arrays.copyOf(fixLon, capacity);
+                fixAlt = Arrays.copyOf(fixAlt, capacity);
+                fixTime = Arrays.copyOf(fixTime, capacity);
+            }
+            Date when = aWhen == null ? null : parseTimeStamp(aWhen);
+            fixLat[fixCount] = aLat;
+            fixLon[fixCount] = aLon;
+            fixAlt[fixCount] = aAlt;
+            fixTime[fixCount] = when == null ? Long.MIN_VALUE : when.getTime();
+            fixCount++;
+        }
+    }
+    
+    /**
+     * @param aDescription The document description of an OLC export.
+     * @return The date of the flight.
+     * @throws ParseException If the description holds no valid date.
+     */
+    static Date parseDate(String aDescription) throws ParseException {
+        return new SimpleDateFormat("dd/MM/yyyy").parse(extractField(aDescription, "date:", "&nbsp;"));
     }
     
-    public final String extractField(String desc, String fieldStart, String fieldEnd) {
+    public static final String extractField(String desc, String fieldStart, String fieldEnd) {
         String shortDesc = desc.toLowerCase();
         if(shortDesc.contains(fieldStart)) {
             int indexOfStart = shortDesc.indexOf(fieldStart);
@@ -119,19 +329,12 @@ public class OLCKmlRecord {
      * @return Number of points, 0 if fixA or fixB are not found.
      */
     public final int getFlightPathCountBetweenFixes(LatLng fixA, LatLng fixB) {
-        int fixAIndex = -1;
-        for(int i = 0; i < mFlight.numFixes(); i++) { 
-            if(fixAIndex == -1) {
-                if(mFlight.fix(i).pos.equals(fixA)) {
-                    fixAIndex = i;
-                }
-            } else {
-                if(mFlight.fix(i).pos.equals(fixB)) {
-                    return (i - fixAIndex);
-                }
-            }
+        int fixAIndex = trackIndex.find(fixA.getLatitude(), fixA.getLongitude(), -1);
+        if(fixAIndex == -1) {
+            return 0;
         }
-        return 0;
+        int fixBIndex = trackIndex.find(fixB.getLatitude(), fixB.getLongitude(), fixAIndex);
+        return fixBIndex == -1 ? 0 : fixBIndex - fixAIndex;
     }
     
     /**
@@ -148,20 +351,30 @@ public class OLCKmlRecord {
         return new LatLng(c.getLatitude(), c.getLongitude());
     }
     
-    static final SimpleDateFormat placemarkTimeStampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-    static {
-        placemarkTimeStampFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    // Track coordinates are collected here while reading; each ingest thread reuses its arrays.
+    static final ThreadLocal<KmlCoordinateScanner> trackScratch = ThreadLocal.withInitial(() -> new KmlCoordinateScanner(1 << 12));
+    
+    // SimpleDateFormat is not thread safe and records are parsed from ingest workers.
+    static final ThreadLocal<SimpleDateFormat> placemarkTimeStampFormat = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    });
     
     public final Date placemarkToDatetime(Placemark p) {
         TimeStamp stamp = (TimeStamp)p.getTimePrimitive();
         if(stamp != null) {
-            //Sample: 2011-04-22T21:51:00Z
-            try{
-                return placemarkTimeStampFormat.parse(stamp.getWhen());
-            }catch(Exception e){
-                e.printStackTrace();
-            }
+            return parseTimeStamp(stamp.getWhen());
+        }
+        return null;
+    }
+    
+    final Date parseTimeStamp(String aWhen) {
+        //Sample: 2011-04-22T21:51:00Z
+        try{
+            return placemarkTimeStampFormat.get().parse(aWhen);
+        }catch(Exception e){
+            e.printStackTrace();
         }
         return null;
     }
@@ -170,5 +383,15 @@ public class OLCKmlRecord {
         return mFlight;
     }
     
+    File file;
     Flight mFlight;
+    final KmlCoordinateScanner trackCoordinates = trackScratch.get();
+    // The placemarks of the "fixes" folder, with Long.MIN_VALUE for missing times.
+    double[] fixLat = new double[64];
+    double[] fixLon = new double[64];
+    double[] fixAlt = new double[64];
+    long[] fixTime = new long[64];
+    int fixCount = 0;
+    // Built by assignFixTimes().
+    TrackIndex trackIndex;
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an OLC KML export with a StAX pull parser. Only the document description,
+ * the '#polyline' placemark coordinates and the placemarks in the "fixes" folder
+ * are handed to the OLCKmlHandler; everything else is skipped without being
+ * materialized.
+ *
+ * Like the JAK path, only features that are direct children of the Document are
+ * considered.
+ * @author James Betker
+ */
+class OLCKmlStreamReader {
+
+    static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    /**
+     * Streams the specified file into aHandler.
+     * @param aKml
+     * @param aHandler
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static void read(File aKml, OLCKmlHandler aHandler) throws IOException, XMLStreamException {
+        try(InputStream in = new BufferedInputStream(new FileInputStream(aKml), 1 << 16)) {
+            XMLStreamReader reader;
+            synchronized(inputFactory) {
+                reader = inputFactory.createXMLStreamReader(in);
+            }
+            try {
+                new OLCKmlStreamReader(reader, aHandler).readDocument();
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private OLCKmlStreamReader(XMLStreamReader aReader, OLCKmlHandler aHandler) {
+        reader = aReader;
+        handler = aHandler;
+    }
+
+    private void readDocument() throws XMLStreamException {
+        // Depth 1 is <kml>, depth 2 is <Document>, depth 3 are the Document's children.
+        int depth = 0;
+        while(reader.hasNext()) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if(depth == 3) {
+                    String name = reader.getLocalName();
+                    if(name.equals("description")) {
+                        handler.onDescription(reader.getElementText());
+                    } else if(name.equals("Placemark")) {
+                        readTopLevelPlacemark();
+                    } else if(name.equals("Folder")) {
+                        readTopLevelFolder();
+                    } else {
+                        skipElement();
+                    }
+                    // Each of the above consumes the matching end element.
+                    depth--;
+                }
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads a placemark which is a direct child of the Document. Coordinates
+     * are only parsed if the placemark is the '#polyline' track.
+     */
+    private void readTopLevelPlacemark() throws XMLStreamException {
+        boolean isPolyline = false;
+        int depth = 1;
+        while(depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if(name.equals("styleUrl")) {
+                    isPolyline = reader.getElementText().trim().equals("#polyline");
+                } else if(name.equals("coordinates") && isPolyline) {
+                    readCoordinates(trackParser);
+                } else {
+                    depth++;
+                }
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads a folder which is a direct child of the Document. Only the "fixes"
+     * folder is of interest, all others are skipped as soon as their name is
+     * known.
+     */
+    private void readTopLevelFolder() throws XMLStreamException {
+        boolean isFixes = false;
+        while(true) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                // Every child is consumed entirely, so the next end element closes the folder.
+                String name = reader.getLocalName();
+                if(name.equals("name")) {
+                    isFixes = reader.getElementText().trim().equals("fixes");
+                    if(!isFixes) {
+                        // Skipping from within the folder consumes the rest of it.
+                        skipElement();
+                        return;
+                    }
+                } else if(isFixes && name.equals("Placemark")) {
+                    readFixPlacemark();
+                } else {
+                    skipElement();
+                }
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a single placemark from the "fixes" folder.
+     */
+    private void readFixPlacemark() throws XMLStreamException {
+        String when = null;
+        fixParser.reset();
+        int depth = 1;
+        while(depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if(name.equals("when")) {
+                    when = reader.getElementText().trim();
+                } else if(name.equals("coordinates")) {
+                    readCoordinates(fixParser);
+                } else {
+                    depth++;
+                }
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        handler.onFixPlacemark(fixParser.lon, fixParser.lat, fixParser.alt, when);
+    }
+
+    /**
+     * Feeds the text of a <coordinates> element into aParser chunk by chunk,
+     * without building a String for the (potentially very large) element. Consumes
+     * the end element.
+     */
+    private void readCoordinates(CoordinateParser aParser) throws XMLStreamException {
+        while(true) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA ||
+               event == XMLStreamConstants.SPACE) {
+                aParser.parse(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                aParser.finish();
+                return;
+            } else if(event == XMLStreamConstants.START_ELEMENT) {
+                skipElement();
+            }
+        }
+    }
+
+    /**
+     * Skips the element whose start tag was just read, including its end tag.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while(depth > 0) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if(event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Splits KML coordinate text ("lon,lat[,alt] lon,lat[,alt] ...") into tuples.
+     * Text may arrive in arbitrary chunks.
+     */
+    static abstract class CoordinateParser {
+        private char[] token = new char[32];
+        private int tokenLength = 0;
+        private final double[] values = new double[3];
+        private int valueCount = 0;
+
+        void parse(char[] aChars, int aStart, int aLength) {
+            for(int i = aStart; i < aStart + aLength; i++) {
+                char c = aChars[i];
+                if(c == ',') {
+                    endValue();
+                } else if(Character.isWhitespace(c)) {
+                    endValue();
+                    endTuple();
+                } else {
+                    if(tokenLength == token.length) {
+                        char[] grown = new char[token.length * 2];
+                        System.arraycopy(token, 0, grown, 0, tokenLength);
+                        token = grown;
+                    }
+                    token[tokenLength++] = c;
+                }
+            }
+        }
+
+        void finish() {
+            endValue();
+            endTuple();
+        }
+
+        private void endValue() {
+            if(tokenLength == 0) return;
+            if(valueCount < values.length) {
+                values[valueCount++] = Double.parseDouble(new String(token, 0, tokenLength));
+            }
+            tokenLength = 0;
+        }
+
+        private void endTuple() {
+            if(valueCount == 0) return;
+            coordinate(values[0], valueCount > 1 ? values[1] : 0, valueCount > 2 ? values[2] : 0);
+            valueCount = 0;
+        }
+
+        abstract void coordinate(double aLon, double aLat, double aAlt);
+    }
+
+    /**
+     * Holds the single coordinate of a fix placemark.
+     */
+    static class PointParser extends CoordinateParser {
+        double lon, lat, alt;
+
+        void reset() {
+            lon = lat = alt = 0;
+        }
+
+        @Override
+        void coordinate(double aLon, double aLat, double aAlt) {
+            lon = aLon;
+            lat = aLat;
+            alt = aAlt;
+        }
+    }
+
+    final XMLStreamReader reader;
+    final OLCKmlHandler handler;
+    final PointParser fixParser = new PointParser();
+    final CoordinateParser trackParser = new CoordinateParser() {
+        @Override
+        void coordinate(double aLon, double aLat, double aAlt) {
+            handler.onTrackCoordinate(aLon, aLat, aAlt);
+        }
+    };
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.util.Arrays;
+
+/**
+ * Simplifies a range of a FlightTrack with the Douglas-Peucker algorithm.
+ *
+ * Fixes are projected onto a local plane around the first fix of the range and
+ * distances are measured in three dimensions, so the altitude profile of a
+ * thermal survives simplification along with its ground track.
+ * @author James Betker
+ */
+public class PolylineSimplifier {
+
+    /**
+     * Marks the fixes of [aStart, aEnd) in aTrack which are needed to stay within
+     * aTolerance of the full polyline. The first and last fixes are always kept.
+     * @param aTrack
+     * @param aStart
+     * @param aEnd
+     * @param aTolerance Maximum distance in meters between the simplified and the full polyline.
+     * @return For every fix in the range, whether it is kept.
+     */
+    public static boolean[] simplify(FlightTrack aTrack, int aStart, int aEnd, double aTolerance) {
+        final int count = aEnd - aStart;
+        boolean[] keep = new boolean[count];
+        if(count <= 2 || aTolerance <= 0) {
+            Arrays.fill(keep, true);
+            return keep;
+        }
+
+        LocalProjection projection = new LocalProjection(aTrack.lat(aStart), aTrack.lon(aStart));
+        double[] x = new double[count];
+        double[] y = new double[count];
+        double[] z = new double[count];
+        for(int i = 0; i < count; i++) {
+            x[i] = projection.east(aTrack.lon(aStart + i));
+            y[i] = projection.north(aTrack.lat(aStart + i));
+            z[i] = aTrack.alt(aStart + i);
+        }
+
+        final double toleranceSquared = aTolerance * aTolerance;
+        keep[0] = true;
+        keep[count - 1] = true;
+        // Pending segments as (first, last) pairs.
+        int[] stack = new int[2 * count];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while(top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            int farthest = -1;
+            double farthestSquared = toleranceSquared;
+            for(int i = first + 1; i < last; i++) {
+                double distanceSquared = segmentDistanceSquared(x, y, z, i, first, last);
+                if(distanceSquared > farthestSquared) {
+                    farthest = i;
+                    farthestSquared = distanceSquared;
+                }
+            }
+            if(farthest != -1) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * @return The squared distance from point i to the segment from point a to point b.
+     */
+    private static double segmentDistanceSquared(double[] x, double[] y, double[] z, int i, int a, int b) {
+        double dx = x[b] - x[a], dy = y[b] - y[a], dz = z[b] - z[a];
+        double px = x[i] - x[a], py = y[i] - y[a], pz = z[i] - z[a];
+        double lengthSquared = dx * dx + dy * dy + dz * dz;
+        double t = lengthSquared == 0 ? 0 : (px * dx + py * dy + pz * dz) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - t * dx, ey = py - t * dy, ez = pz - t * dz;
+        return ex * ex + ey * ey + ez * ez;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+/**
+ * A FlightTrack stored in fixed point: latitudes and longitudes as int
+ * micro-degrees, altitudes as int decimeters and times as int milliseconds
+ * since the first fix. That is 16 bytes per fix rather than 32 for
+ * ArrayFlightTrack.
+ *
+ * OLC exports carry four decimals of a degree and whole meters, so their fixes
+ * fit exactly. encode() checks this for every value and declines tracks which
+ * would not come back bit for bit, so a quantized track always reads the same
+ * values as the track it was made from.
+ * @author James Betker
+ */
+public class QuantizedFlightTrack extends FlightTrack {
+    static final double DEGREE_SCALE = 1e6;
+    static final double ALTITUDE_SCALE = 10;
+
+    /**
+     * @param aTrack
+     * @param aStart
+     * @param aEnd
+     * @return The fixes [aStart, aEnd) of aTrack in fixed point, or null if any
+     *         of them can not be represented exactly.
+     */
+    public static QuantizedFlightTrack encode(FlightTrack aTrack, int aStart, int aEnd) {
+        final int count = aEnd - aStart;
+        QuantizedFlightTrack track = new QuantizedFlightTrack(count, count == 0 ? 0 : aTrack.time(aStart));
+        for(int i = 0; i < count; i++) {
+            int lat = quantize(aTrack.lat(aStart + i), DEGREE_SCALE);
+            int lon = quantize(aTrack.lon(aStart + i), DEGREE_SCALE);
+            int alt = quantize(aTrack.alt(aStart + i), ALTITUDE_SCALE);
+            long time = aTrack.time(aStart + i) - track.baseTime;
+            if(lat == Integer.MIN_VALUE || lon == Integer.MIN_VALUE || alt == Integer.MIN_VALUE || time != (int)time) {
+                return null;
+            }
+            track.lat[i] = lat;
+            track.lon[i] = lon;
+            track.alt[i] = alt;
+            track.time[i] = (int)time;
+        }
+        return track;
+    }
+
+    /**
+     * @return aValue scaled to an int, or Integer.MIN_VALUE if it does not
+     *         survive the round trip exactly.
+     */
+    private static int quantize(double aValue, double aScale) {
+        long scaled = Math.round(aValue * aScale);
+        if(scaled <= Integer.MIN_VALUE || scaled > Integer.MAX_VALUE || Double.compare(scaled / aScale, aValue) != 0) {
+            return Integer.MIN_VALUE;
+        }
+        return (int)scaled;
+    }
+
+    private QuantizedFlightTrack(int aSize, long aBaseTime) {
+        lat = new int[aSize];
+        lon = new int[aSize];
+        alt = new int[aSize];
+        time = new int[aSize];
+        baseTime = aBaseTime;
+    }
+
+    @Override
+    public void add(double aLat, double aLon, double aAlt, long aEpochMillis) {
+        throw new UnsupportedOperationException("Quantized tracks can not grow.");
+    }
+
+    @Override
+    public void addAll(double[] aLat, double[] aLon, double[] aAlt, int aCount) {
+        throw new UnsupportedOperationException("Quantized tracks can not grow.");
+    }
+
+    @Override
+    public int size() {
+        return lat.length;
+    }
+
+    @Override
+    public double lat(int i) {
+        return lat[i] / DEGREE_SCALE;
+    }
+
+    @Override
+    public double lon(int i) {
+        return lon[i] / DEGREE_SCALE;
+    }
+
+    @Override
+    public double alt(int i) {
+        return alt[i] / ALTITUDE_SCALE;
+    }
+
+    @Override
+    public long time(int i) {
+        return baseTime + time[i];
+    }
+
+    @Override
+    public void setTime(int i, long aEpochMillis) {
+        long offset = aEpochMillis - baseTime;
+        if(offset != (int)offset) {
+            throw new IllegalArgumentException("Time is too far from the first fix of a quantized track.");
+        }
+        time[i] = (int)offset;
+    }
+
+    final int[] lat;
+    final int[] lon;
+    final int[] alt;
+    final int[] time;
+    final long baseTime;
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.applied.thermal.types.ThermalCategory;
+import com.applied.thermal.types.ThermalCategory.ThermalSortingField;
+import com.applied.thermal.types.ThermalCategoryFactory;
+import com.javadocmd.simplelatlng.LatLng;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * The streaming counterpart of KmlFolderCategory. The folder of the category is
+ * written when it is created, its thermal placemarks as they are added and its
+ * thermal trajectories when it finishes, so nothing is kept in memory once a
+ * category is done.
+ *
+ * The folder name holds the number of thermals, if the category is created with
+ * it; otherwise it is only the title, since the folder is written before any
+ * thermal is added.
+ *
+ * With Configuration.UseLevelOfDetail, the thermals of a category are instead
+ * written when it finishes, grouped into tiles by where they start. Every tile
+ * is a folder with a Region, so Google Earth only draws it once it is large
+ * enough on screen, and thermal lines are simplified with PolylineSimplifier.
+ */
+class StreamingKmlCategory extends ThermalCategory {
+
+    /**
+     * Creates StreamingKmlCategory objects which all write to a single writer.
+     */
+    static class Factory implements ThermalCategoryFactory {
+        Factory(StreamingKmlWriter aWriter) {
+            writer = aWriter;
+        }
+
+        /**
+         * Without the number of thermals up front, folder names only hold the title.
+         */
+        @Override
+        public ThermalCategory createCategory(ThermalSortingField aField, String aTitle, ThermalCategory aParentCategory) {
+            return createCategory(aField, aTitle, aParentCategory, ThermalCategoryFactory.UNKNOWN_SIZE);
+        }
+
+        @Override
+        public ThermalCategory createCategory(ThermalSortingField aField, String aTitle, ThermalCategory aParentCategory, int aTotalThermals) {
+            return new StreamingKmlCategory(aField, aParentCategory, aTitle, aTotalThermals, writer, false);
+        }
+
+        final StreamingKmlWriter writer;
+    }
+
+    /**
+     * Writes every top-level category into its own KML entry of a KMZ archive,
+     * and links to it from the root document of the archive. Links are created
+     * invisible, so that Google Earth only loads a category once it is enabled.
+     */
+    static class KmzFactory extends Factory {
+        KmzFactory(KmzWriter aKmz) {
+            super(null);
+            kmz = aKmz;
+        }
+
+        @Override
+        public ThermalCategory createCategory(ThermalSortingField aField, String aTitle, ThermalCategory aParentCategory, int aTotalThermals) {
+            if(aParentCategory != null) {
+                return new StreamingKmlCategory(aField, aParentCategory, aTitle, aTotalThermals, ((StreamingKmlCategory)aParentCategory).writer, false);
+            }
+            String entryName = String.format("categories/%03d_%s.kml", entryCount++, aTitle.replaceAll("[^A-Za-z0-9._-]", "_"));
+            kmz.addNetworkLink(folderName(aTitle, aTotalThermals), entryName, false);
+            try {
+                StreamingKmlWriter entryWriter = new StreamingKmlWriter(kmz.newEntry(entryName), aTitle);
+                exportThermalStyleToKml(entryWriter);
+                return new StreamingKmlCategory(aField, null, aTitle, aTotalThermals, entryWriter, true);
+            } catch(XMLStreamException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        final KmzWriter kmz;
+        int entryCount = 0;
+    }
+
+    /**
+     * @return aTitle followed by the number of thermals, if it is known.
+     */
+    static String folderName(String aTitle, int aTotalThermals) {
+        return aTotalThermals == ThermalCategoryFactory.UNKNOWN_SIZE ? aTitle : aTitle + " (" + aTotalThermals + ")";
+    }
+
+    /**
+     * Writes the same styles as KmlFolderCategory.exportThermalStyleToKml().
+     * @param aWriter
+     * @throws XMLStreamException
+     */
+    static void exportThermalStyleToKml(StreamingKmlWriter aWriter) throws XMLStreamException {
+        for(int i = 0; i < 12; i++) {
+            int color = 0xffffff / 12 * i;
+            aWriter.writeStyle(KmlFolderCategory.THERMAL_STYLE_NAME + i, KmlFolderCategory.colorString(color), 2, "7fffffff");
+            aWriter.writeStyle(KmlFolderCategory.THERMAL_TRAJ_STYLE_NAME + i, KmlFolderCategory.colorString(color), 4, "7fffffff");
+        }
+    }
+
+    /**
+     * @param aField
+     * @param aParentCategory
+     * @param aTitle
+     * @param aTotalThermals
+     * @param aWriter
+     * @param aOwnsWriter Whether finish() closes aWriter.
+     */
+    public StreamingKmlCategory(ThermalSortingField aField, ThermalCategory aParentCategory, String aTitle, int aTotalThermals, StreamingKmlWriter aWriter, boolean aOwnsWriter) {
+        super(aField, aParentCategory, aTitle);
+        writer = aWriter;
+        ownsWriter = aOwnsWriter;
+        totalThermals = aTotalThermals;
+        levelOfDetail = Configuration.getConfig().UseLevelOfDetail;
+        try {
+            writer.startFolder(folderName(title, totalThermals), false);
+        } catch(XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void addThermal(Thermal aThermal) {
+        super.addThermal(aThermal);
+        if(levelOfDetail) {
+            // Written by finish(), once the tiles are known.
+            return;
+        }
+
+        try {
+            aThermal.exportToKml(writer, getStyle(aThermal), 0);
+        } catch(XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private String getStyle(Thermal aThermal) {
+        return KmlFolderCategory.THERMAL_STYLE_NAME + KmlFolderCategory.getStyleNumber(this, aThermal);
+    }
+
+    @Override
+    public int getTotalThermals() {
+        return totalThermals == ThermalCategoryFactory.UNKNOWN_SIZE ? super.getTotalThermals() : totalThermals;
+    }
+
+    @Override
+    public void finish() {
+        try {
+            if(levelOfDetail) {
+                writeTiles();
+            } else {
+                writeTrajectories(thermals);
+            }
+            writer.endFolder();
+            if(ownsWriter) {
+                writer.close();
+            }
+        } catch(XMLStreamException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        // Everything has been written out.
+        thermals.clear();
+    }
+
+    private void writeTrajectories(ArrayList<Thermal> aThermals) throws XMLStreamException {
+        writer.startFolder("Thermal Trajectories", false);
+        for(Thermal thermal : aThermals) {
+            thermal.exportTrajectoryToKml(writer, getStyle(thermal));
+        }
+        writer.endFolder();
+    }
+    
+    /**
+     * Writes the thermals of this category grouped into tiles of
+     * Configuration.LodTileDegrees by their first fix. The Region of a tile is its
+     * cell, so that Configuration.LodMinPixels is the size on screen of a cell for
+     * every tile however few thermals it holds, extended to cover everything drawn
+     * in it, including the thermal trajectories.
+     * @throws XMLStreamException 
+     */
+    private void writeTiles() throws XMLStreamException {
+        Configuration config = Configuration.getConfig();
+        final double tileDegrees = config.LodTileDegrees;
+        TreeMap<Long, ArrayList<Thermal>> tiles = new TreeMap<>();
+        for(Thermal thermal : thermals) {
+            long row = (long)Math.floor(thermal.track.lat(thermal.startIndex) / tileDegrees);
+            long column = (long)Math.floor(thermal.track.lon(thermal.startIndex) / tileDegrees);
+            Long key = (row << 32) | (column & 0xffffffffL);
+            ArrayList<Thermal> tile = tiles.get(key);
+            if(tile == null) {
+                tile = new ArrayList<>();
+                tiles.put(key, tile);
+            }
+            tile.add(thermal);
+        }
+        
+        for(Map.Entry<Long, ArrayList<Thermal>> tile : tiles.entrySet()) {
+            long row = tile.getKey() >> 32;
+            long column = (int)(long)tile.getKey();
+            double south = Math.max(row * tileDegrees, -90);
+            double north = Math.min((row + 1) * tileDegrees, 90);
+            double west = Math.max(column * tileDegrees, -180);
+            double east = Math.min((column + 1) * tileDegrees, 180);
+            for(Thermal thermal : tile.getValue()) {
+                FlightTrack track = thermal.track;
+                for(int i = thermal.startIndex; i < thermal.endIndex; i++) {
+                    north = Math.max(north, track.lat(i));
+                    south = Math.min(south, track.lat(i));
+                    east = Math.max(east, track.lon(i));
+                    west = Math.min(west, track.lon(i));
+                }
+                for(LatLng end : new LatLng[] { thermal.getGroundPosition(), thermal.getHighestPoint() }) {
+                    north = Math.max(north, end.getLatitude());
+                    south = Math.min(south, end.getLatitude());
+                    east = Math.max(east, end.getLongitude());
+                    west = Math.min(west, end.getLongitude());
+                }
+            }
+            
+            writer.startFolder(String.format(Locale.ROOT, "%.2f, %.2f (%d)", row * tileDegrees, column * tileDegrees, tile.getValue().size()), false);
+            writer.writeRegion(north, south, east, west, config.LodMinPixels);
+            for(Thermal thermal : tile.getValue()) {
+                thermal.exportToKml(writer, getStyle(thermal), config.SimplificationTolerance);
+            }
+            writeTrajectories(tile.getValue());
+            writer.endFolder();
+        }
+    }
+
+    final StreamingKmlWriter writer;
+    final boolean ownsWriter;
+    final boolean levelOfDetail;
+    final int totalThermals;
+}
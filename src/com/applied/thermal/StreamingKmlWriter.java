@@ -0,0 +1,355 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a KML document element by element as it is produced, rather than
+ * building it in memory with JAK and marshalling it at the end.
+ *
+ * Coordinates are formatted into a reusable character buffer, so writing a
+ * line string does not allocate per coordinate.
+ * @author James Betker
+ */
+public class StreamingKmlWriter implements AutoCloseable {
+    static final String KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+    static final int BUFFER_SIZE = 1 << 16;
+    static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    // Decimals written for latitudes and longitudes (~1cm) and for altitudes.
+    static final int DEGREE_DECIMALS = 7;
+    static final int ALTITUDE_DECIMALS = 2;
+    static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L };
+
+    /**
+     * Opens aFile and writes the start of a document named aName.
+     * @param aFile
+     * @param aName
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public StreamingKmlWriter(File aFile, String aName) throws IOException, XMLStreamException {
+        this(Channels.newOutputStream(FileChannel.open(aFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), aName);
+    }
+
+    /**
+     * Writes a document named aName to aOut. aOut is closed along with the writer.
+     * @param aOut
+     * @param aName
+     * @throws XMLStreamException
+     */
+    public StreamingKmlWriter(OutputStream aOut, String aName) throws XMLStreamException {
+        out = new BufferedOutputStream(aOut, BUFFER_SIZE);
+        synchronized(outputFactory) {
+            writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+        }
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("kml");
+        writer.writeDefaultNamespace(KML_NAMESPACE);
+        writer.writeStartElement("Document");
+        writeElement("name", aName);
+        writeElement("open", "1");
+    }
+
+    /**
+     * Writes a Style with a LineStyle and a PolyStyle.
+     * @param aId
+     * @param aLineColor
+     * @param aLineWidth
+     * @param aPolyColor
+     * @throws XMLStreamException
+     */
+    public void writeStyle(String aId, String aLineColor, double aLineWidth, String aPolyColor) throws XMLStreamException {
+        writer.writeStartElement("Style");
+        writer.writeAttribute("id", aId);
+        writer.writeStartElement("LineStyle");
+        writeElement("color", aLineColor);
+        writeElement("width", Double.toString(aLineWidth));
+        writer.writeEndElement();
+        writer.writeStartElement("PolyStyle");
+        writeElement("color", aPolyColor);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    /**
+     * Starts a Folder. Features written until the matching endFolder() are
+     * placed inside of it.
+     * @param aName
+     * @param aOpen
+     * @throws XMLStreamException
+     */
+    public void startFolder(String aName, boolean aOpen) throws XMLStreamException {
+        writer.writeStartElement("Folder");
+        writeElement("name", aName);
+        writeElement("open", aOpen ? "1" : "0");
+    }
+
+    public void endFolder() throws XMLStreamException {
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a Region. Must directly follow startFolder(), so that the Region
+     * applies to the contents of that folder.
+     * @param aNorth
+     * @param aSouth
+     * @param aEast
+     * @param aWest
+     * @param aMinLodPixels The size on screen, in pixels, from which on the folder is drawn.
+     * @throws XMLStreamException
+     */
+    public void writeRegion(double aNorth, double aSouth, double aEast, double aWest, int aMinLodPixels) throws XMLStreamException {
+        writeRegion(aNorth, aSouth, aEast, aWest, aMinLodPixels, -1);
+    }
+
+    /**
+     * Like writeRegion() above, but the folder or overlay is only drawn up to
+     * aMaxLodPixels on screen, or without limit if that is -1.
+     * @param aNorth
+     * @param aSouth
+     * @param aEast
+     * @param aWest
+     * @param aMinLodPixels
+     * @param aMaxLodPixels
+     * @throws XMLStreamException
+     */
+    public void writeRegion(double aNorth, double aSouth, double aEast, double aWest, int aMinLodPixels, int aMaxLodPixels) throws XMLStreamException {
+        writer.writeStartElement("Region");
+        writer.writeStartElement("LatLonAltBox");
+        writeElement("north", Double.toString(aNorth));
+        writeElement("south", Double.toString(aSouth));
+        writeElement("east", Double.toString(aEast));
+        writeElement("west", Double.toString(aWest));
+        writer.writeEndElement();
+        writer.writeStartElement("Lod");
+        writeElement("minLodPixels", Integer.toString(aMinLodPixels));
+        writeElement("maxLodPixels", Integer.toString(aMaxLodPixels));
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a NetworkLink to aHref.
+     * @param aName
+     * @param aHref
+     * @param aVisible
+     * @throws XMLStreamException
+     */
+    public void writeNetworkLink(String aName, String aHref, boolean aVisible) throws XMLStreamException {
+        writer.writeStartElement("NetworkLink");
+        writeElement("name", aName);
+        writeElement("visibility", aVisible ? "1" : "0");
+        writer.writeStartElement("Link");
+        writeElement("href", aHref);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a GroundOverlay which drapes the image at aHref over the box from
+     * aWest to aEast and aSouth to aNorth, as long as its Region is between
+     * aMinLodPixels and aMaxLodPixels on screen.
+     * @param aName
+     * @param aHref
+     * @param aDrawOrder Overlays with a higher draw order are drawn on top.
+     * @param aNorth
+     * @param aSouth
+     * @param aEast
+     * @param aWest
+     * @param aMinLodPixels
+     * @param aMaxLodPixels -1 for no limit.
+     * @throws XMLStreamException
+     */
+    public void writeGroundOverlay(String aName, String aHref, int aDrawOrder, double aNorth, double aSouth, double aEast, double aWest, int aMinLodPixels, int aMaxLodPixels) throws XMLStreamException {
+        writer.writeStartElement("GroundOverlay");
+        writeElement("name", aName);
+        writeRegion(aNorth, aSouth, aEast, aWest, aMinLodPixels, aMaxLodPixels);
+        writeElement("drawOrder", Integer.toString(aDrawOrder));
+        writer.writeStartElement("Icon");
+        writeElement("href", aHref);
+        writer.writeEndElement();
+        writer.writeStartElement("LatLonBox");
+        writeElement("north", Double.toString(aNorth));
+        writeElement("south", Double.toString(aSouth));
+        writeElement("east", Double.toString(aEast));
+        writeElement("west", Double.toString(aWest));
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a Placemark with a Point on the ground.
+     * @param aName
+     * @param aDescription The description, or null for none.
+     * @param aLon
+     * @param aLat
+     * @throws XMLStreamException
+     */
+    public void writePointPlacemark(String aName, String aDescription, double aLon, double aLat) throws XMLStreamException {
+        writer.writeStartElement("Placemark");
+        writeElement("name", aName);
+        if(aDescription != null) {
+            writeElement("description", aDescription);
+        }
+        writer.writeStartElement("Point");
+        writer.writeStartElement("coordinates");
+        firstCoordinate = true;
+        coordinate(aLon, aLat, 0);
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    /**
+     * Starts a Placemark with a LineString in absolute altitude mode. Follow with
+     * coordinate() calls and endPlacemark().
+     * @param aName
+     * @param aStyleUrl
+     * @param aDescription The description, or null for none.
+     * @param aVisible
+     * @throws XMLStreamException
+     */
+    public void startLinePlacemark(String aName, String aStyleUrl, String aDescription, boolean aVisible) throws XMLStreamException {
+        writer.writeStartElement("Placemark");
+        writeElement("name", aName);
+        if(!aVisible) {
+            writeElement("visibility", "0");
+        }
+        if(aDescription != null) {
+            writeElement("description", aDescription);
+        }
+        writeElement("styleUrl", aStyleUrl);
+        writer.writeStartElement("LineString");
+        writeElement("altitudeMode", "absolute");
+        writer.writeStartElement("coordinates");
+        firstCoordinate = true;
+    }
+
+    /**
+     * Writes a coordinate of the placemark started by startLinePlacemark().
+     * @param aLon
+     * @param aLat
+     * @param aAlt
+     * @throws XMLStreamException
+     */
+    public void coordinate(double aLon, double aLat, double aAlt) throws XMLStreamException {
+        int length = 0;
+        if(!firstCoordinate) {
+            chars[length++] = ' ';
+        }
+        firstCoordinate = false;
+        length = appendDecimal(aLon, DEGREE_DECIMALS, length);
+        chars[length++] = ',';
+        length = appendDecimal(aLat, DEGREE_DECIMALS, length);
+        chars[length++] = ',';
+        length = appendDecimal(aAlt, ALTITUDE_DECIMALS, length);
+        writer.writeCharacters(chars, 0, length);
+    }
+
+    public void endPlacemark() throws XMLStreamException {
+        writer.writeEndElement(); // coordinates
+        writer.writeEndElement(); // LineString
+        writer.writeEndElement(); // Placemark
+    }
+
+    /**
+     * Appends aValue rounded to aDecimals decimals, without trailing zeros, to chars.
+     * @return The new length of chars.
+     */
+    private int appendDecimal(double aValue, int aDecimals, int aLength) {
+        long scale = POWERS_OF_TEN[aDecimals];
+        double scaled = Math.abs(aValue) * scale;
+        if(Double.isNaN(aValue) || scaled >= Long.MAX_VALUE) {
+            // Not expected in practice; fall back to the general formatter.
+            String text = Double.toString(aValue);
+            text.getChars(0, text.length(), chars, aLength);
+            return aLength + text.length();
+        }
+        long units = Math.round(scaled);
+        long whole = units / scale;
+        long fraction = units % scale;
+        if(aValue < 0 && units != 0) {
+            chars[aLength++] = '-';
+        }
+        aLength = appendLong(whole, aLength);
+        if(fraction != 0) {
+            int digits = aDecimals;
+            while(fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            chars[aLength++] = '.';
+            for(int i = aLength + digits - 1; i >= aLength; i--) {
+                chars[i] = (char)('0' + fraction % 10);
+                fraction /= 10;
+            }
+            aLength += digits;
+        }
+        return aLength;
+    }
+
+    private int appendLong(long aValue, int aLength) {
+        int start = aLength;
+        do {
+            chars[aLength++] = (char)('0' + aValue % 10);
+            aValue /= 10;
+        } while(aValue != 0);
+        for(int i = start, j = aLength - 1; i < j; i++, j--) {
+            char c = chars[i];
+            chars[i] = chars[j];
+            chars[j] = c;
+        }
+        return aLength;
+    }
+
+    private void writeElement(String aName, String aText) throws XMLStreamException {
+        writer.writeStartElement(aName);
+        writer.writeCharacters(aText);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Ends the document and closes the file.
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    @Override
+    public void close() throws XMLStreamException, IOException {
+        try {
+            writer.writeEndDocument();
+            writer.close();
+        } finally {
+            out.close();
+        }
+    }
+
+    final OutputStream out;
+    final XMLStreamWriter writer;
+    // Large enough for one coordinate, including the fallback formatting.
+    final char[] chars = new char[128];
+    boolean firstCoordinate;
+}
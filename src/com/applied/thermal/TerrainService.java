@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.applied.thermal.types.DriftGradientVector;
+import com.javadocmd.simplelatlng.LatLng;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Looks up terrain elevations from SRTM .hgt tiles in a local directory.
+ *
+ * A tile covers one degree of latitude and longitude and is named after its
+ * south west corner, e.g. N35W118.hgt. It holds n x n big-endian 16 bit
+ * elevations in meters, row by row from north to south, where n is 1201 for
+ * SRTM3 and 3601 for SRTM1. Tiles are memory-mapped when first needed and kept
+ * in a cache of a fixed number of tiles, so that lookups hitting the same few
+ * tiles never touch the disk again. Cached tiles are found in an array with a
+ * slot for every tile of the world, without taking a lock, so ingest threads do
+ * not wait on each other; only mapping a tile, and evicting the least recently
+ * used one to make room for it, is done under a lock.
+ * Elevations are interpolated bilinearly between the four surrounding samples.
+ *
+ * SRTM leaves out tiles which are entirely ocean, so positions without a tile
+ * are at sea level, as are positions in tiles which can not be read. The same
+ * goes for voids in a tile, unless some of the surrounding samples are valid.
+ * @author James Betker
+ */
+public class TerrainService {
+    static final short VOID = -32768;
+    // The drift line is followed down in steps of at most this many meters, vertically and laterally.
+    static final double INTERSECTION_STEP = 10;
+    // Below the lowest dry land on earth.
+    static final double MIN_ELEVATION = -500;
+    // How stale the last use of a tile may get before a lookup updates it.
+    static final long STAMP_NANOS = 10000000;
+
+    /**
+     * @param aDirectory The directory holding the .hgt tiles.
+     * @param aMaxTiles The number of tiles kept mapped.
+     */
+    public TerrainService(File aDirectory, int aMaxTiles) {
+        directory = aDirectory;
+        maxTiles = Math.max(aMaxTiles, 1);
+    }
+
+    /**
+     * @param aLat
+     * @param aLon
+     * @return The terrain elevation at aLat, aLon in meters above sea level.
+     */
+    public double elevation(double aLat, double aLon) {
+        return elevation(aLat, aLon, null);
+    }
+
+    /**
+     * @param aLookup Remembers the last tile of a series of lookups, which are
+     *                mostly in the same tile, or null.
+     */
+    private double elevation(double aLat, double aLon, Lookup aLookup) {
+        int tileLat = Math.min(Math.max((int)Math.floor(aLat), -90), 89);
+        int tileLon = Math.min(Math.max((int)Math.floor(aLon), -180), 179);
+        int key = (tileLat + 90) * 360 + tileLon + 180;
+        Tile tile;
+        if(aLookup != null && aLookup.tile != null && aLookup.key == key) {
+            tile = aLookup.tile;
+        } else {
+            tile = getTile(key, tileLat, tileLon);
+            if(aLookup != null) {
+                aLookup.key = key;
+                aLookup.tile = tile;
+            }
+        }
+        if(tile.heights == null) {
+            return 0;
+        }
+        final int n = tile.samples;
+        double y = (tileLat + 1 - aLat) * (n - 1);
+        double x = (aLon - tileLon) * (n - 1);
+        int row = Math.min((int)y, n - 2);
+        int column = Math.min((int)x, n - 2);
+        double fy = y - row;
+        double fx = x - column;
+
+        // Weigh each valid corner, so that voids only lose their own share.
+        double sum = 0, weights = 0, plainSum = 0;
+        int valid = 0;
+        for(int corner = 0; corner < 4; corner++) {
+            int dy = corner >> 1, dx = corner & 1;
+            short height = tile.heights.get((row + dy) * n + column + dx);
+            if(height != VOID) {
+                double weight = (dy == 0 ? 1 - fy : fy) * (dx == 0 ? 1 - fx : fx);
+                sum += weight * height;
+                weights += weight;
+                plainSum += height;
+                valid++;
+            }
+        }
+        if(weights > 0) {
+            return sum / weights;
+        }
+        // Right on a void: the valid corners all have zero weight.
+        return valid > 0 ? plainSum / valid : 0;
+    }
+
+    /**
+     * Follows the drift line through aFix down to where it meets the terrain.
+     * @param aFix A fix above the terrain.
+     * @param aDrift The drift of the air mass aFix is in.
+     * @return The fix at which the line meets the terrain. Its altitude is the
+     *         terrain elevation there; it has no time.
+     */
+    public FlightFix intersect(FlightFix aFix, DriftGradientVector aDrift) {
+        Lookup lookup = new Lookup();
+        double step = INTERSECTION_STEP / Math.max(1, Math.abs(aDrift.magnitude));
+        if(Double.isNaN(step) || heightAboveGround(aFix, aDrift, aFix.alt, lookup) <= 0) {
+            return groundFix(aFix.pos, lookup);
+        }
+        double above = aFix.alt;
+        double below = above - step;
+        while(below > MIN_ELEVATION && heightAboveGround(aFix, aDrift, below, lookup) > 0) {
+            above = below;
+            below -= step;
+        }
+        // The line enters the terrain between above and below; narrow it down to a decimeter.
+        while(above - below > .1) {
+            double middle = (above + below) / 2;
+            if(heightAboveGround(aFix, aDrift, middle, lookup) > 0) {
+                above = middle;
+            } else {
+                below = middle;
+            }
+        }
+        return groundFix(aDrift.extrapolateFixTo(aFix, below), lookup);
+    }
+
+    private double heightAboveGround(FlightFix aFix, DriftGradientVector aDrift, double aAltitude, Lookup aLookup) {
+        LatLng position = aDrift.extrapolateFixTo(aFix, aAltitude);
+        return aAltitude - elevation(position.getLatitude(), position.getLongitude(), aLookup);
+    }
+
+    private FlightFix groundFix(LatLng aPosition, Lookup aLookup) {
+        FlightFix fix = new FlightFix();
+        fix.pos = aPosition;
+        fix.alt = elevation(aPosition.getLatitude(), aPosition.getLongitude(), aLookup);
+        return fix;
+    }
+
+    /**
+     * @return The tile whose south west corner is aLat, aLon from the cache,
+     *         mapping it if needed.
+     */
+    private Tile getTile(int aKey, int aLat, int aLon) {
+        Tile tile = tiles.get(aKey);
+        if(tile == null) {
+            tile = cacheTile(aKey, aLat, aLon);
+        }
+        // Only stamped now and then, so that threads sharing a tile rarely write to it.
+        long now = System.nanoTime();
+        if(now - tile.lastUsed > STAMP_NANOS) {
+            tile.lastUsed = now;
+        }
+        return tile;
+    }
+
+    /**
+     * Maps a tile which is not cached yet, and evicts the least recently used
+     * tile if the cache is full. Evicted mappings are unmapped once they are
+     * garbage collected, so lookups still holding them can finish.
+     */
+    private synchronized Tile cacheTile(int aKey, int aLat, int aLon) {
+        Tile tile = tiles.get(aKey);
+        if(tile != null) {
+            // Mapped by another thread while this one waited.
+            return tile;
+        }
+        tile = load(aLat, aLon);
+        tile.key = aKey;
+        tile.lastUsed = System.nanoTime();
+        if(cached.size() >= maxTiles) {
+            int eldest = 0;
+            for(int i = 1; i < cached.size(); i++) {
+                if(cached.get(i).lastUsed < cached.get(eldest).lastUsed) {
+                    eldest = i;
+                }
+            }
+            tiles.set(cached.get(eldest).key, null);
+            cached.set(eldest, tile);
+        } else {
+            cached.add(tile);
+        }
+        tiles.set(aKey, tile);
+        return tile;
+    }
+
+    private Tile load(int aLat, int aLon) {
+        String name = String.format(Locale.ROOT, "%s%02d%s%03d.hgt", aLat < 0 ? "S" : "N", Math.abs(aLat), aLon < 0 ? "W" : "E", Math.abs(aLon));
+        File file = new File(directory, name);
+        if(!file.isFile()) {
+            return unusable(name, "No terrain tile " + name);
+        }
+        int samples = (int)Math.round(Math.sqrt(file.length() / 2));
+        if((long)samples * samples * 2 != file.length() || samples < 2) {
+            return unusable(name, "Not an SRTM tile: " + file);
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Tile tile = new Tile();
+            tile.samples = samples;
+            // The mapping stays valid after the channel is closed. Reads only use
+            // absolute gets, so the buffer can be shared between threads.
+            tile.heights = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asShortBuffer();
+            tilesLoaded++;
+            return tile;
+        } catch(IOException e) {
+            return unusable(name, "Unable to map terrain tile " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Missing and broken tiles stay cached too, without heights, so they are not
+     * looked for on every lookup and lie at sea level. Each is reported once.
+     */
+    private Tile unusable(String aName, String aProblem) {
+        if(warnedMissing.add(aName)) {
+            Logger.err(aProblem + ", assuming sea level there.");
+        }
+        return new Tile();
+    }
+
+    /**
+     * @return The number of tiles mapped since the service was created, including
+     *         tiles mapped again after being evicted.
+     */
+    public synchronized int getTilesLoaded() {
+        return tilesLoaded;
+    }
+
+    /**
+     * A mapped .hgt file, or a missing one if it has no heights.
+     */
+    static class Tile {
+        ShortBuffer heights;
+        int samples;
+        int key;
+        // System.nanoTime() of a recent lookup, for eviction.
+        volatile long lastUsed;
+    }
+
+    /**
+     * The tile of the previous lookup of a series of lookups by one thread.
+     */
+    static class Lookup {
+        Tile tile;
+        int key;
+    }
+
+    final File directory;
+    final int maxTiles;
+    // Indexed by (lat + 90) * 360 + lon + 180 of the south west corner of a tile.
+    final AtomicReferenceArray<Tile> tiles = new AtomicReferenceArray<>(180 * 360);
+    // The tiles in the array, only used under the lock.
+    final ArrayList<Tile> cached = new ArrayList<>();
+    final Set<String> warnedMissing = new HashSet<>();
+    int tilesLoaded = 0;
+}
@@ -19,52 +19,144 @@ import com.applied.thermal.types.DriftGradientVector;
 import com.javadocmd.simplelatlng.LatLng;
 import com.javadocmd.simplelatlng.LatLngTool;
 import com.javadocmd.simplelatlng.util.LengthUnit;
-import java.util.ArrayList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+import javax.xml.stream.XMLStreamException;
 
 import de.micromata.opengis.kml.v_2_2_0.*;
 
 /**
- *
+ * A thermal keeps its own fixes and the date, pilot and airplane of its flight,
+ * but no reference to the flight itself, so a flight can be garbage collected as
+ * soon as detection is done with it.
  * @author James Betker
  */
 public class Thermal {
     
     public Thermal(Flight aFlight) {
-        flight = aFlight;
-        fixesInThermal = new ArrayList<>(100);
+        this(aFlight.date, aFlight.pilot, aFlight.airplane, new ArrayFlightTrack(100), 0, 0);
     }
     
-    public Thermal(Flight aFlight, ArrayList<FlightFix> fixes) {
-        flight = aFlight;
-        fixesInThermal = fixes;
+    /**
+     * Creates a thermal which consists of a copy of the fixes [aStartIndex, aEndIndex)
+     * of aFlight's track, see FlightTrack.compact().
+     * @param aFlight
+     * @param aStartIndex
+     * @param aEndIndex 
+     */
+    public Thermal(Flight aFlight, int aStartIndex, int aEndIndex) {
+        this(aFlight.date, aFlight.pilot, aFlight.airplane, FlightTrack.compact(aFlight.track.slice(aStartIndex, aEndIndex)), 0, aEndIndex - aStartIndex);
+    }
+    
+    /**
+     * Creates a thermal which consists of the fixes [aStartIndex, aEndIndex) of
+     * aTrack. The track is not copied, so thermals may share one.
+     * @param aDate
+     * @param aPilot
+     * @param aAirplane
+     * @param aTrack
+     * @param aStartIndex
+     * @param aEndIndex 
+     */
+    public Thermal(Date aDate, String aPilot, String aAirplane, FlightTrack aTrack, int aStartIndex, int aEndIndex) {
+        date = aDate;
+        pilot = aPilot;
+        airplane = aAirplane;
+        track = aTrack;
+        startIndex = aStartIndex;
+        endIndex = aEndIndex;
     }
     
+    /**
+     * Writes the fixes of this thermal and the details of its flight to aOut.
+     * @param aOut
+     * @throws IOException 
+     */
+    public void write(DataOutput aOut) throws IOException {
+        aOut.writeLong(date == null ? Long.MIN_VALUE : date.getTime());
+        writeString(aOut, pilot);
+        writeString(aOut, airplane);
+        aOut.writeInt(endIndex - startIndex);
+        for(int i = startIndex; i < endIndex; i++) {
+            aOut.writeDouble(track.lat(i));
+            aOut.writeDouble(track.lon(i));
+            aOut.writeDouble(track.alt(i));
+            aOut.writeLong(track.time(i));
+        }
+    }
+    
+    /**
+     * Reads a thermal written by write().
+     * @param aIn
+     * @return The thermal, with a track of its own.
+     * @throws IOException 
+     */
+    public static Thermal read(DataInput aIn) throws IOException {
+        long date = aIn.readLong();
+        String pilot = readString(aIn);
+        String airplane = readString(aIn);
+        int count = aIn.readInt();
+        FlightTrack track = new ArrayFlightTrack(count);
+        for(int i = 0; i < count; i++) {
+            track.add(aIn.readDouble(), aIn.readDouble(), aIn.readDouble(), aIn.readLong());
+        }
+        return new Thermal(date == Long.MIN_VALUE ? null : new Date(date), pilot, airplane, FlightTrack.compact(track), 0, count);
+    }
+    
+    private static void writeString(DataOutput aOut, String aString) throws IOException {
+        aOut.writeBoolean(aString != null);
+        if(aString != null) {
+            aOut.writeUTF(aString);
+        }
+    }
+    
+    private static String readString(DataInput aIn) throws IOException {
+        return aIn.readBoolean() ? aIn.readUTF() : null;
+    }
+    
+    /**
+     * Appends a fix to a thermal whose fixes end its track.
+     * @param fix 
+     */
     public void addFix(FlightFix fix) { 
+        if(endIndex != track.size()) {
+            throw new IllegalStateException("Fixes can only be added to thermals which end their track.");
+        }
         computed = false;
-        fixesInThermal.add(fix);
+        ground = null;
+        track.add(fix.pos.getLatitude(), fix.pos.getLongitude(), fix.alt, fix.time.getTime());
+        endIndex++;
     }
     
     public void compute() {
-        if(fixesInThermal.isEmpty()) return;
+        if(endIndex == startIndex) return;
         
-        FlightFix firstFix = fixesInThermal.get(0);
-        name = firstFix.toString();
+        name = getFirstFix().toString();
         
         // Fetch min and max heights
-        FlightFix minHeightFix = null;
-        FlightFix maxHeightFix = null;
-        for(int i = 0; i < fixesInThermal.size(); i++) {
-            FlightFix fix = fixesInThermal.get(i);
-            if(minHeightFix == null || fix.alt < minHeightFix.alt) {
-                minHeightFix = fix;
+        int minHeightIndex = startIndex;
+        int maxHeightIndex = startIndex;
+        for(int i = startIndex + 1; i < endIndex; i++) {
+            if(track.alt(i) < track.alt(minHeightIndex)) {
+                minHeightIndex = i;
             }
-            if(maxHeightFix == null || fix.alt > maxHeightFix.alt) {
-                maxHeightFix = fix;
+            if(track.alt(i) > track.alt(maxHeightIndex)) {
+                maxHeightIndex = i;
             }
         }
-        minHeight = minHeightFix.alt;
-        maxHeight = maxHeightFix.alt;
-        avgClimbRate = (maxHeight - minHeight) / ((double)(maxHeightFix.time.getTime() - minHeightFix.time.getTime()) / 1000.);
+        minHeight = track.alt(minHeightIndex);
+        maxHeight = track.alt(maxHeightIndex);
+        avgClimbRate = (maxHeight - minHeight) / ((double)(track.time(maxHeightIndex) - track.time(minHeightIndex)) / 1000.);
+        TerrainService terrain = Configuration.getConfig().getTerrain();
+        if(terrain != null) {
+            minHeightAgl = minHeight - terrain.elevation(track.lat(minHeightIndex), track.lon(minHeightIndex));
+            maxHeightAgl = maxHeight - terrain.elevation(track.lat(maxHeightIndex), track.lon(maxHeightIndex));
+        } else {
+            minHeightAgl = Double.NaN;
+            maxHeightAgl = Double.NaN;
+        }
         
         computed = true;
     }
@@ -78,16 +170,11 @@ public class Thermal {
 	// use the style for each continent
 	placemark.withName(name)
 	    .withStyleUrl(aStyle)
-            .withDescription("Date: " + fixesInThermal.get(0).time.toLocaleString() + 
-                             "\nPilot: " + flight.pilot + 
-                             "\nGlider: " + flight.airplane + 
-                             "\nMin Height(m): " + minHeight + 
-                             "\nMax Height(m): " + maxHeight +
-                             "\nAverage Climb Rate (m/s): " + avgClimbRate);
+            .withDescription(getDescription());
         LineString line = placemark.createAndSetLineString();
         line.setAltitudeMode(AltitudeMode.ABSOLUTE);
-        for(FlightFix fix : fixesInThermal) {
-            line.addToCoordinates(fix.pos.getLongitude(), fix.pos.getLatitude(), fix.alt);
+        for(int i = startIndex; i < endIndex; i++) {
+            line.addToCoordinates(track.lon(i), track.lat(i), track.alt(i));
         }
         
         placemark = aTrajFolder.createAndAddPlacemark();
@@ -98,9 +185,68 @@ public class Thermal {
         line = placemark.createAndSetLineString();
         line.setAltitudeMode(AltitudeMode.ABSOLUTE);
         LatLng bottom = getGroundPosition();
-        line.addToCoordinates(bottom.getLongitude(), bottom.getLatitude(), 0);
+        line.addToCoordinates(bottom.getLongitude(), bottom.getLatitude(), getGroundAltitude());
         LatLng top = getHighestPoint();
-        line.addToCoordinates(top.getLongitude(), top.getLatitude(), fixesInThermal.get(fixesInThermal.size()-1).alt);
+        line.addToCoordinates(top.getLongitude(), top.getLatitude(), track.alt(endIndex - 1));
+    }
+    
+    /**
+     * Writes the same placemark as exportToKml() does into aKmlFolder.
+     * @param aWriter
+     * @param aStyle
+     * @param aTolerance If positive, the line is simplified to within this many meters, see PolylineSimplifier.
+     * @throws XMLStreamException 
+     */
+    public void exportToKml(StreamingKmlWriter aWriter, String aStyle, double aTolerance) throws XMLStreamException {
+        if(!computed) {
+            compute();
+        }
+        
+        aWriter.startLinePlacemark(name, aStyle, getDescription(), true);
+        if(aTolerance > 0) {
+            boolean[] keep = PolylineSimplifier.simplify(track, startIndex, endIndex, aTolerance);
+            for(int i = startIndex; i < endIndex; i++) {
+                if(keep[i - startIndex]) {
+                    aWriter.coordinate(track.lon(i), track.lat(i), track.alt(i));
+                }
+            }
+        } else {
+            for(int i = startIndex; i < endIndex; i++) {
+                aWriter.coordinate(track.lon(i), track.lat(i), track.alt(i));
+            }
+        }
+        aWriter.endPlacemark();
+    }
+    
+    /**
+     * Writes the same placemark as exportToKml() does into aTrajFolder.
+     * @param aWriter
+     * @param aTrajStyle
+     * @throws XMLStreamException 
+     */
+    public void exportTrajectoryToKml(StreamingKmlWriter aWriter, String aTrajStyle) throws XMLStreamException {
+        if(!computed) {
+            compute();
+        }
+        
+        aWriter.startLinePlacemark(name + "_ThermalTrajectory", aTrajStyle, null, false);
+        LatLng bottom = getGroundPosition();
+        aWriter.coordinate(bottom.getLongitude(), bottom.getLatitude(), getGroundAltitude());
+        LatLng top = getHighestPoint();
+        aWriter.coordinate(top.getLongitude(), top.getLatitude(), track.alt(endIndex - 1));
+        aWriter.endPlacemark();
+    }
+    
+    private String getDescription() {
+        return "Date: " + new Date(track.time(startIndex)).toLocaleString() + 
+               "\nPilot: " + pilot + 
+               "\nGlider: " + airplane + 
+               "\nMin Height(m): " + minHeight + 
+               "\nMax Height(m): " + maxHeight +
+               (Double.isNaN(minHeightAgl) ? "" :
+               "\nMin Height AGL(m): " + minHeightAgl +
+               "\nMax Height AGL(m): " + maxHeightAgl) +
+               "\nAverage Climb Rate (m/s): " + avgClimbRate;
     }
     
     /**
@@ -115,10 +261,22 @@ public class Thermal {
         }
         
         DriftGradientVector ret = new DriftGradientVector();
-        double distanceShift = LatLngTool.distance(fixesInThermal.get(fixesInThermal.size() - 1).pos, fixesInThermal.get(0).pos, LengthUnit.METER);
-        double altShift = fixesInThermal.get(fixesInThermal.size() - 1).alt - fixesInThermal.get(0).alt;
+        int last = endIndex - 1;
+        if(Configuration.getConfig().UsePlanarGeometry) {
+            ret.projection = track.project();
+            double altShift = track.alt(last) - track.alt(startIndex);
+            double eastFirst = track.east[startIndex], northFirst = track.north[startIndex];
+            double eastLast = track.east[last], northLast = track.north[last];
+            ret.heading = LocalProjection.bearing(eastFirst, northFirst, eastLast, northLast);
+            ret.magnitude = LocalProjection.distance(eastFirst, northFirst, eastLast, northLast) / altShift;
+            ret.eastShift = (eastLast - eastFirst) / altShift;
+            ret.northShift = (northLast - northFirst) / altShift;
+            return ret;
+        }
+        double distanceShift = LatLngTool.distance(track.position(last), track.position(startIndex), LengthUnit.METER);
+        double altShift = track.alt(last) - track.alt(startIndex);
         
-        ret.heading = LatLngTool.initialBearing(fixesInThermal.get(0).pos, fixesInThermal.get(fixesInThermal.size() - 1).pos);
+        ret.heading = LatLngTool.initialBearing(track.position(startIndex), track.position(last));
         ret.magnitude = distanceShift / altShift;
         
         return ret;
@@ -131,17 +289,42 @@ public class Thermal {
      * @return 
      */
     public LatLng getHighestPoint() {
-        return getAverageShift().extrapolateFixTo(fixesInThermal.get(0), fixesInThermal.get(fixesInThermal.size()-1).alt);
+        return getAverageShift().extrapolateFixTo(getFirstFix(), track.alt(endIndex - 1));
     }
     
     /**
      * Generates a linear plot of lateral shifting for the thermal across the
      * ground and returns the intercept point using that average velocity, starting
-     * at the base of lift and extrapolated to 0 MSL.
+     * at the base of lift and extrapolated down to the terrain, or to 0 MSL if
+     * no terrain is configured.
      * @return 
      */
     public LatLng getGroundPosition() {
-        return getAverageShift().extrapolateFixTo(fixesInThermal.get(0), 0);
+        return getGround().pos;
+    }
+    
+    /**
+     * Returns the altitude of getGroundPosition(): the terrain elevation there,
+     * or 0 if no terrain is configured.
+     * @return 
+     */
+    public double getGroundAltitude() {
+        return getGround().alt;
+    }
+    
+    private FlightFix getGround() {
+        if(ground == null) {
+            TerrainService terrain = Configuration.getConfig().getTerrain();
+            FlightFix fix;
+            if(terrain != null) {
+                fix = terrain.intersect(getFirstFix(), getAverageShift());
+            } else {
+                fix = new FlightFix();
+                fix.pos = getAverageShift().extrapolateFixTo(getFirstFix(), 0);
+            }
+            ground = fix;
+        }
+        return ground;
     }
     
     /**
@@ -149,15 +332,39 @@ public class Thermal {
      * @return 
      */
     public FlightFix getFirstFix() {
-        return fixesInThermal.get(0);
+        return track.fix(startIndex);
     }
     
     /**
-     * Returns the flight associated with the thermal.
+     * Returns the time of the first flight fix in milliseconds since the epoch.
      * @return 
      */
-    public Flight getFlight() {
-        return flight;
+    public long getStartTime() {
+        return track.time(startIndex);
+    }
+    
+    /**
+     * Returns the number of fixes in this thermal.
+     * @return 
+     */
+    public int numFixes() {
+        return endIndex - startIndex;
+    }
+    
+    /**
+     * Returns the date of the flight the thermal was found in.
+     * @return 
+     */
+    public Date getDate() {
+        return date;
+    }
+    
+    public String getPilot() {
+        return pilot;
+    }
+    
+    public String getAirplane() {
+        return airplane;
     }
     
     public double getTotalClimb() {
@@ -168,6 +375,44 @@ public class Thermal {
         return maxHeight - minHeight;
     }
     
+    /**
+     * Returns the altitude of the highest fix in meters MSL.
+     * @return 
+     */
+    public double getMaxHeight() {
+        if(!computed) {
+            compute();
+        }
+        
+        return maxHeight;
+    }
+    
+    /**
+     * Returns the height of the lowest fix above the terrain beneath it, or NaN
+     * if no terrain is configured.
+     * @return 
+     */
+    public double getMinHeightAgl() {
+        if(!computed) {
+            compute();
+        }
+        
+        return minHeightAgl;
+    }
+    
+    /**
+     * Returns the height of the highest fix above the terrain beneath it, or NaN
+     * if no terrain is configured.
+     * @return 
+     */
+    public double getMaxHeightAgl() {
+        if(!computed) {
+            compute();
+        }
+        
+        return maxHeightAgl;
+    }
+    
     public double getAverageClimbRate() {
         if(!computed) {
             compute();
@@ -176,15 +421,24 @@ public class Thermal {
         return avgClimbRate;
     }
     
-    Flight flight;
-    ArrayList<FlightFix> fixesInThermal;
+    // Taken from the flight the thermal was found in.
+    Date date;
+    String pilot;
+    String airplane;
+    // The fixes of this thermal are [startIndex, endIndex) of track.
+    FlightTrack track;
+    int startIndex;
+    int endIndex;
     
     // Computed values.
     boolean computed = false;
     String name;
     double minHeight;
     double maxHeight;
+    double minHeightAgl;
+    double maxHeightAgl;
     double maxClimbRate300Meters;
     double avgClimbRate;
+    FlightFix ground;
     
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds thermals in a FlightTrack.
+ *
+ * The speed and climb between every fix and the fix one minute after it are
+ * computed once, in a single pass, into primitive arrays, straight from the
+ * columns of the track. The arrays are then
+ * scanned for thermals without allocating; thermals are reported as index ranges
+ * into the track. Buffers are reused between flights, so a detector should be
+ * kept per thread rather than created per flight.
+ * @author James Betker
+ */
+public class ThermalDetector {
+
+    /**
+     * Detects the thermals in aTrack. Results are available through getThermalCount(),
+     * getThermalStart() and getThermalEnd() until the next call.
+     *
+     * A thermal is detected by finding a subset of contiguous fixes that meets these requirements:
+     * 1) At least 1 minute long.
+     * 2) A maximum speed for any segment of the subset as defined in Configuration.MaxSpeedInThermal which is never exceeded during a 1-minute period.
+     * 3) A climb of at least Configuration.MinThermalClimbDistance.
+     * 4) A climb rate that never falls below Configuration.MinThermalClimbRate over a 1-minute period.
+     * @param aTrack
+     * @param aFixesPerMinute
+     * @return The number of thermals found.
+     */
+    public int detect(FlightTrack aTrack, int aFixesPerMinute) {
+        long startNs = System.nanoTime();
+        thermalCount = 0;
+        final int limit = aTrack.size() - aFixesPerMinute;
+        if(limit <= 0) {
+            return 0;
+        }
+        ensureCapacity(limit);
+
+        // Conditions (2) and (4) for every fix and the fix one minute in advance of it.
+        if(Configuration.getConfig().UsePlanarGeometry) {
+            aTrack.project();
+            final double[] east = aTrack.east;
+            final double[] north = aTrack.north;
+            for(int i = 0; i < limit; i++) {
+                int j = i + aFixesPerMinute;
+                speed[i] = LocalProjection.distance(east[i], north[i], east[j], north[j]) / ((double)(aTrack.time(j) - aTrack.time(i)) / 1000.);
+                climb[i] = aTrack.alt(j) - aTrack.alt(i);
+            }
+        } else {
+            // Each fix takes part in two distances, so its trigonometry is done once up front.
+            final int size = aTrack.size();
+            ensurePositionCapacity(size);
+            for(int i = 0; i < size; i++) {
+                double lat = aTrack.lat(i), lon = aTrack.lon(i);
+                if(FlightTrack.isPlain(lat, lon)) {
+                    latRadians[i] = Math.toRadians(FlightTrack.microDegrees(lat));
+                    cosLat[i] = Math.cos(latRadians[i]);
+                    lonDegrees[i] = FlightTrack.microDegrees(lon);
+                } else {
+                    latRadians[i] = Double.NaN;
+                }
+            }
+            for(int i = 0; i < limit; i++) {
+                int j = i + aFixesPerMinute;
+                double distance;
+                if(Double.isNaN(latRadians[i]) || Double.isNaN(latRadians[j])) {
+                    distance = aTrack.getDistance(i, j);
+                } else {
+                    distance = FlightTrack.haversine(latRadians[j], cosLat[j], lonDegrees[j], latRadians[i], cosLat[i], lonDegrees[i]);
+                }
+                speed[i] = distance / ((double)(aTrack.time(j) - aTrack.time(i)) / 1000.);
+                climb[i] = aTrack.alt(j) - aTrack.alt(i);
+            }
+        }
+
+        final double maxSpeed = Configuration.getConfig().MaxSpeedInThermal;
+        final double minClimb = Configuration.getConfig().MinThermalClimbRate;
+        final double minClimbDistance = Configuration.getConfig().MinThermalClimbDistance;
+        for(int i = 0; i < limit; i++) {
+            if(meetsRateRequirements(speed[i], climb[i], maxSpeed, minClimb)) {
+                // Keep searching forward from i until reqs 2 or 4 fail.
+                int thermalStartIndex = i++;
+                while(i < limit && meetsRateRequirements(speed[i], climb[i], maxSpeed, minClimb)) {
+                    i++;
+                }
+                if(i >= limit) {
+                    break;
+                }
+                int thermalEndIndex = i + aFixesPerMinute;
+                if(aTrack.alt(thermalEndIndex) - aTrack.alt(thermalStartIndex) > minClimbDistance) {
+                    addThermal(thermalStartIndex, thermalEndIndex);
+                }
+            }
+        }
+
+        fixesScanned.add(aTrack.size());
+        nanosSpent.add(System.nanoTime() - startNs);
+        return thermalCount;
+    }
+
+    /**
+     * Checks conditions (2) and (4) for a one minute period.
+     * @param aSpeed The lateral speed over the period in m/s.
+     * @param aClimb The altitude gained over the period in m.
+     * @param aMaxSpeed
+     * @param aMinClimb
+     * @return
+     */
+    static boolean meetsRateRequirements(double aSpeed, double aClimb, double aMaxSpeed, double aMinClimb) {
+        return (aSpeed < aMaxSpeed) && (aClimb > aMinClimb);
+    }
+
+    private void ensureCapacity(int aCapacity) {
+        if(speed.length < aCapacity) {
+            int capacity = Math.max(aCapacity, speed.length * 2);
+            speed = new double[capacity];
+            climb = new double[capacity];
+        }
+    }
+
+    private void ensurePositionCapacity(int aCapacity) {
+        if(latRadians.length < aCapacity) {
+            int capacity = Math.max(aCapacity, latRadians.length * 2);
+            latRadians = new double[capacity];
+            cosLat = new double[capacity];
+            lonDegrees = new double[capacity];
+        }
+    }
+
+    private void addThermal(int aStart, int aEnd) {
+        if(thermalCount == thermalStarts.length) {
+            int[] starts = new int[thermalCount * 2];
+            int[] ends = new int[thermalCount * 2];
+            System.arraycopy(thermalStarts, 0, starts, 0, thermalCount);
+            System.arraycopy(thermalEnds, 0, ends, 0, thermalCount);
+            thermalStarts = starts;
+            thermalEnds = ends;
+        }
+        thermalStarts[thermalCount] = aStart;
+        thermalEnds[thermalCount] = aEnd;
+        thermalCount++;
+    }
+
+    public int getThermalCount() {
+        return thermalCount;
+    }
+
+    /**
+     * @param i
+     * @return The index of the first fix of the i'th thermal found.
+     */
+    public int getThermalStart(int i) {
+        return thermalStarts[i];
+    }
+
+    /**
+     * @param i
+     * @return The index one past the last fix of the i'th thermal found.
+     */
+    public int getThermalEnd(int i) {
+        return thermalEnds[i];
+    }
+
+    /**
+     * Returns the detection throughput of all detectors since startup.
+     * @return Fixes processed per second of detection time.
+     */
+    public static double getFixesPerSecond() {
+        long nanos = nanosSpent.sum();
+        return nanos == 0 ? 0 : fixesScanned.sum() / (nanos / 1e9);
+    }
+
+    /**
+     * Returns the number of fixes processed by all detectors since startup.
+     * @return
+     */
+    public static long getFixesScanned() {
+        return fixesScanned.sum();
+    }
+
+    static final LongAdder fixesScanned = new LongAdder();
+    static final LongAdder nanosSpent = new LongAdder();
+
+    double[] speed = new double[0];
+    double[] climb = new double[0];
+    // Positions of the fixes for geodesic distances, NaN latitudes for those LatLng would change.
+    double[] latRadians = new double[0];
+    double[] cosLat = new double[0];
+    double[] lonDegrees = new double[0];
+    int[] thermalStarts = new int[16];
+    int[] thermalEnds = new int[16];
+    int thermalCount;
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import com.javadocmd.simplelatlng.LatLng;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * A static spatial index over the positions of a list of thermals: a packed
+ * Hilbert R-tree.
+ *
+ * The thermals are sorted along a Hilbert curve through their bounding box,
+ * which keeps thermals close on the curve close on the ground, and packed into
+ * leaves of NODE_SIZE. Each level above packs NODE_SIZE nodes of the level below
+ * into one, so the tree is built with a single sort and all nodes live in flat
+ * arrays.
+ *
+ * Distances are measured on a plane about the query point, like LocalProjection,
+ * which is accurate to a fraction of a percent over the tens of kilometers
+ * flight planning is concerned with. Positions across the antimeridian are not
+ * considered close.
+ * @author James Betker
+ */
+public class ThermalIndex {
+    static final int NODE_SIZE = 16;
+    static final int HILBERT_ORDER = 16;
+
+    /**
+     * The position of a thermal which is indexed.
+     */
+    public enum Anchor {
+        Start,  //! The first fix of the thermal.
+        Ground  //! Where the thermal's drift line meets the ground, see Thermal.getGroundPosition().
+    }
+
+    /**
+     * Builds the index in O(n log n).
+     * @param aThermals
+     * @param aAnchor
+     */
+    public ThermalIndex(List<Thermal> aThermals, Anchor aAnchor) {
+        final int count = aThermals.size();
+        double[] lat = new double[count];
+        double[] lon = new double[count];
+        double south = 90, north = -90, west = 180, east = -180;
+        for(int i = 0; i < count; i++) {
+            Thermal thermal = aThermals.get(i);
+            LatLng position = aAnchor == Anchor.Start ? thermal.getFirstFix().pos : thermal.getGroundPosition();
+            lat[i] = position.getLatitude();
+            lon[i] = position.getLongitude();
+            south = Math.min(south, lat[i]);
+            north = Math.max(north, lat[i]);
+            west = Math.min(west, lon[i]);
+            east = Math.max(east, lon[i]);
+        }
+
+        // The Hilbert value goes in the high half, so sorting the longs sorts the thermals.
+        // It takes all 32 bits, so the sign bit is flipped to sort them as unsigned.
+        final int cells = (1 << HILBERT_ORDER) - 1;
+        long[] order = new long[count];
+        for(int i = 0; i < count; i++) {
+            int x = (int)(east > west ? (lon[i] - west) / (east - west) * cells : 0);
+            int y = (int)(north > south ? (lat[i] - south) / (north - south) * cells : 0);
+            order[i] = ((hilbert(x, y) << 32) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(order);
+
+        int nodes = count;
+        int levels = 1;
+        for(int c = count; c > 1; levels++) {
+            c = (c + NODE_SIZE - 1) / NODE_SIZE;
+            nodes += c;
+        }
+        thermals = new Thermal[count];
+        minLat = new double[nodes];
+        minLon = new double[nodes];
+        maxLat = new double[nodes];
+        maxLon = new double[nodes];
+        firstChild = new int[nodes];
+        levelStart = new int[levels + 1];
+
+        for(int i = 0; i < count; i++) {
+            int thermal = (int)order[i];
+            thermals[i] = aThermals.get(thermal);
+            minLat[i] = maxLat[i] = lat[thermal];
+            minLon[i] = maxLon[i] = lon[thermal];
+        }
+        int node = count;
+        for(int level = 1; level < levels; level++) {
+            levelStart[level] = node;
+            for(int child = levelStart[level - 1]; child < levelStart[level]; child += NODE_SIZE) {
+                int end = Math.min(child + NODE_SIZE, levelStart[level]);
+                minLat[node] = minLon[node] = Double.POSITIVE_INFINITY;
+                maxLat[node] = maxLon[node] = Double.NEGATIVE_INFINITY;
+                for(int i = child; i < end; i++) {
+                    minLat[node] = Math.min(minLat[node], minLat[i]);
+                    minLon[node] = Math.min(minLon[node], minLon[i]);
+                    maxLat[node] = Math.max(maxLat[node], maxLat[i]);
+                    maxLon[node] = Math.max(maxLon[node], maxLon[i]);
+                }
+                firstChild[node] = child;
+                node++;
+            }
+        }
+        levelStart[levels] = nodes;
+    }
+
+    /**
+     * @return The position of (aX, aY) along a Hilbert curve filling a square of
+     *         2^HILBERT_ORDER cells on each side.
+     */
+    static long hilbert(int aX, int aY) {
+        final int side = 1 << HILBERT_ORDER;
+        int x = aX, y = aY;
+        long d = 0;
+        for(int s = side >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long)s * s * ((3 * rx) ^ ry);
+            if(ry == 0) {
+                if(rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return The number of indexed thermals.
+     */
+    public int size() {
+        return thermals.length;
+    }
+
+    /**
+     * @param aSouth
+     * @param aWest
+     * @param aNorth
+     * @param aEast
+     * @return The thermals within the bounding box, in no particular order.
+     */
+    public List<Thermal> withinBox(double aSouth, double aWest, double aNorth, double aEast) {
+        List<Thermal> result = new ArrayList<>();
+        search(node -> minLat[node] <= aNorth && maxLat[node] >= aSouth && minLon[node] <= aEast && maxLon[node] >= aWest,
+               item -> result.add(thermals[item]));
+        return result;
+    }
+
+    /**
+     * @param aCenter
+     * @param aMeters
+     * @return The thermals within aMeters of aCenter, in no particular order.
+     */
+    public List<Thermal> withinRadius(LatLng aCenter, double aMeters) {
+        final double lat = aCenter.getLatitude(), lon = aCenter.getLongitude();
+        final double metersPerDegreeEast = metersPerDegreeEast(lat);
+        List<Thermal> result = new ArrayList<>();
+        search(node -> distanceToNode(lat, lon, metersPerDegreeEast, node) <= aMeters,
+               item -> result.add(thermals[item]));
+        return result;
+    }
+
+    /**
+     * Finds the nearest thermals best first, only descending into the nodes which
+     * may still hold one of them.
+     * @param aCenter
+     * @param aCount
+     * @return The aCount thermals closest to aCenter, closest first.
+     */
+    public List<Thermal> nearest(LatLng aCenter, int aCount) {
+        if(thermals.length == 0 || aCount <= 0) {
+            return Collections.emptyList();
+        }
+        final double lat = aCenter.getLatitude(), lon = aCenter.getLongitude();
+        final double metersPerDegreeEast = metersPerDegreeEast(lat);
+        List<Thermal> result = new ArrayList<>(Math.min(aCount, thermals.length));
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(new Candidate(root(), levelStart.length - 2, 0));
+        while(!queue.isEmpty() && result.size() < aCount) {
+            Candidate candidate = queue.poll();
+            if(candidate.level == 0) {
+                // Nothing left in the queue can be closer than this thermal.
+                result.add(thermals[candidate.node]);
+                continue;
+            }
+            int end = Math.min(firstChild[candidate.node] + NODE_SIZE, levelStart[candidate.level]);
+            for(int child = firstChild[candidate.node]; child < end; child++) {
+                queue.add(new Candidate(child, candidate.level - 1, distanceToNode(lat, lon, metersPerDegreeEast, child)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the thermals along a route, e.g. a task.
+     * @param aRoute The turnpoints of the route, in order.
+     * @param aMeters The half width of the corridor.
+     * @return The thermals within aMeters of any leg of aRoute, ordered by how far
+     *         along the route they are.
+     */
+    public List<Thermal> alongRoute(List<LatLng> aRoute, double aMeters) {
+        if(aRoute.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // Thermals near two legs are placed at the leg they are closest to.
+        Map<Integer, double[]> found = new HashMap<>();
+        double routeMeters = 0;
+        // A route of a single point is a leg of no length.
+        final int legs = Math.max(aRoute.size() - 1, 1);
+        for(int leg = 0; leg < legs; leg++) {
+            LatLng from = aRoute.get(leg);
+            LatLng to = aRoute.get(Math.min(leg + 1, aRoute.size() - 1));
+            LocalProjection projection = new LocalProjection((from.getLatitude() + to.getLatitude()) / 2, (from.getLongitude() + to.getLongitude()) / 2);
+            final double fromEast = projection.east(from.getLongitude()), fromNorth = projection.north(from.getLatitude());
+            final double legEast = projection.east(to.getLongitude()) - fromEast, legNorth = projection.north(to.getLatitude()) - fromNorth;
+            final double legMeters = Math.sqrt(legEast * legEast + legNorth * legNorth);
+            final double startMeters = routeMeters;
+
+            // A box around the leg which holds the whole corridor.
+            double marginLat = aMeters / LocalProjection.METERS_PER_DEGREE;
+            double south = Math.min(from.getLatitude(), to.getLatitude()) - marginLat;
+            double north = Math.max(from.getLatitude(), to.getLatitude()) + marginLat;
+            double marginLon = aMeters / metersPerDegreeEast(Math.max(Math.abs(south), Math.abs(north)));
+            double west = Math.min(from.getLongitude(), to.getLongitude()) - marginLon;
+            double east = Math.max(from.getLongitude(), to.getLongitude()) + marginLon;
+
+            search(node -> minLat[node] <= north && maxLat[node] >= south && minLon[node] <= east && maxLon[node] >= west, item -> {
+                double pointEast = projection.east(minLon[item]) - fromEast;
+                double pointNorth = projection.north(minLat[item]) - fromNorth;
+                double along = legMeters > 0 ? (pointEast * legEast + pointNorth * legNorth) / legMeters : 0;
+                along = Math.max(0, Math.min(legMeters, along));
+                double offEast = pointEast - (legMeters > 0 ? along * legEast / legMeters : 0);
+                double offNorth = pointNorth - (legMeters > 0 ? along * legNorth / legMeters : 0);
+                double distance = Math.sqrt(offEast * offEast + offNorth * offNorth);
+                if(distance <= aMeters) {
+                    double[] best = found.get(item);
+                    if(best == null || distance < best[1]) {
+                        found.put(item, new double[] { startMeters + along, distance });
+                    }
+                }
+            });
+            routeMeters += legMeters;
+        }
+
+        List<Map.Entry<Integer, double[]>> entries = new ArrayList<>(found.entrySet());
+        entries.sort((a, b) -> Double.compare(a.getValue()[0], b.getValue()[0]));
+        List<Thermal> result = new ArrayList<>(entries.size());
+        for(Map.Entry<Integer, double[]> entry : entries) {
+            result.add(thermals[entry.getKey()]);
+        }
+        return result;
+    }
+
+    /**
+     * Walks every node accepted by aNode depth first and hands the position of
+     * every accepted leaf to aItem.
+     */
+    private void search(NodeTest aNode, IntConsumer aItem) {
+        if(thermals.length == 0) {
+            return;
+        }
+        int[] stack = new int[64];
+        int[] levels = new int[64];
+        int depth = 0;
+        stack[depth] = root();
+        levels[depth++] = levelStart.length - 2;
+        while(depth > 0) {
+            depth--;
+            int node = stack[depth];
+            int level = levels[depth];
+            if(!aNode.accepts(node)) {
+                continue;
+            }
+            if(level == 0) {
+                aItem.accept(node);
+                continue;
+            }
+            int end = Math.min(firstChild[node] + NODE_SIZE, levelStart[level]);
+            if(depth + NODE_SIZE > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            for(int child = firstChild[node]; child < end; child++) {
+                stack[depth] = child;
+                levels[depth++] = level - 1;
+            }
+        }
+    }
+
+    private int root() {
+        return minLat.length - 1;
+    }
+
+    /**
+     * @return The distance in meters from aLat, aLon to the closest point of the
+     *         box of aNode.
+     */
+    private double distanceToNode(double aLat, double aLon, double aMetersPerDegreeEast, int aNode) {
+        double dLat = aLat < minLat[aNode] ? minLat[aNode] - aLat : aLat > maxLat[aNode] ? aLat - maxLat[aNode] : 0;
+        double dLon = aLon < minLon[aNode] ? minLon[aNode] - aLon : aLon > maxLon[aNode] ? aLon - maxLon[aNode] : 0;
+        double north = dLat * LocalProjection.METERS_PER_DEGREE;
+        double east = dLon * aMetersPerDegreeEast;
+        return Math.sqrt(north * north + east * east);
+    }
+
+    private static double metersPerDegreeEast(double aLat) {
+        return LocalProjection.METERS_PER_DEGREE * Math.cos(Math.toRadians(Math.min(Math.abs(aLat), 90)));
+    }
+
+    interface NodeTest {
+        boolean accepts(int aNode);
+    }
+
+    /**
+     * A node waiting in the queue of nearest(), with the distance to its box.
+     */
+    static class Candidate implements Comparable<Candidate> {
+        Candidate(int aNode, int aLevel, double aDistance) {
+            node = aNode;
+            level = aLevel;
+            distance = aDistance;
+        }
+
+        @Override
+        public int compareTo(Candidate aOther) {
+            return Double.compare(distance, aOther.distance);
+        }
+
+        final int node;
+        final int level;
+        final double distance;
+    }
+
+    // The first thermals.length nodes are the leaves, one per thermal, in Hilbert order.
+    final Thermal[] thermals;
+    final double[] minLat;
+    final double[] minLon;
+    final double[] maxLat;
+    final double[] maxLon;
+    // For nodes above the leaves, the first of their up to NODE_SIZE children.
+    final int[] firstChild;
+    // The nodes of level l are [levelStart[l], levelStart[l + 1]); the leaves are level 0.
+    final int[] levelStart;
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persists the thermals detected in every input file, so that a run only needs
+ * to parse and run detection on files which are new or have changed since the
+ * last run.
+ *
+ * The manifest lists every processed file with its size, modification time and
+ * SHA-256 hash, along with the detection settings it was processed with. If the
+ * settings differ, the whole manifest is discarded. The thermals of a file are
+ * stored in their own result file, named after a hash of its path, which holds
+ * the flight's date, pilot and airplane and the fixes of each thermal.
+ *
+ * Entries are added concurrently by the ingest threads; the manifest is only
+ * written by save().
+ * @author James Betker
+ */
+public class ThermalStore {
+    static final int MAGIC = 0x54545331; // "TTS1"
+    static final int VERSION = 2;
+    static final String MANIFEST = "manifest.txt";
+
+    /**
+     * Opens the store in aDirectory and reads its manifest, if there is one.
+     * @param aDirectory
+     */
+    public ThermalStore(File aDirectory) {
+        directory = aDirectory;
+        directory.mkdirs();
+        readManifest();
+    }
+
+    /**
+     * @param aKml
+     * @return The stored thermals of aKml, or null if aKml is new, has changed or
+     *         its results cannot be read.
+     */
+    public List<Thermal> get(File aKml) {
+        Entry entry = entries.get(aKml.getAbsolutePath());
+        if(entry == null || entry.size != aKml.length()) {
+            return null;
+        }
+        try {
+            if(entry.modified != aKml.lastModified()) {
+                if(!entry.hash.equals(FlightCache.toHex(FlightCache.hash(aKml), 32))) {
+                    return null;
+                }
+                // Only touched; remember the new time so the file is not hashed again.
+                entries.put(entry.path, new Entry(entry.path, entry.size, aKml.lastModified(), entry.hash));
+                modified = true;
+            }
+            return readThermals(resultFileFor(aKml));
+        } catch(IOException e) {
+            Logger.err("Ignoring unreadable thermals of " + aKml.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the thermals of aFlight, which was parsed from aKml.
+     * @param aKml
+     * @param aFlight A flight on which detection has run.
+     */
+    public void put(File aKml, Flight aFlight) {
+        File resultFile = resultFileFor(aKml);
+        try {
+            long size = aKml.length();
+            long lastModified = aKml.lastModified();
+            String hash = FlightCache.toHex(FlightCache.hash(aKml), 32);
+            File temp = File.createTempFile(resultFile.getName(), ".tmp", directory);
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                writeThermals(out, aFlight);
+            }
+            Files.move(temp.toPath(), resultFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            entries.put(aKml.getAbsolutePath(), new Entry(aKml.getAbsolutePath(), size, lastModified, hash));
+            modified = true;
+        } catch(IOException e) {
+            Logger.err("Unable to store thermals of " + aKml.getName() + ": " + e);
+        }
+    }
+
+    /**
+     * Drops every file which is not in aFiles, along with its thermals.
+     * @param aFiles The input files of the current run.
+     */
+    public void retainOnly(Collection<File> aFiles) {
+        Set<String> paths = new HashSet<>();
+        for(File file : aFiles) {
+            paths.add(file.getAbsolutePath());
+        }
+        for(String path : new ArrayList<>(entries.keySet())) {
+            if(!paths.contains(path)) {
+                Logger.log("Dropping thermals of deleted file " + path);
+                entries.remove(path);
+                resultFileFor(new File(path)).delete();
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest if anything changed. The manifest is replaced
+     * atomically, so an interrupted run leaves the previous one intact.
+     */
+    public void save() {
+        if(!modified) {
+            return;
+        }
+        try {
+            File temp = File.createTempFile(MANIFEST, ".tmp", directory);
+            try(Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                out.write(settings() + "\n");
+                for(Entry entry : entries.values()) {
+                    out.write(entry.hash + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.path + "\n");
+                }
+            }
+            Files.move(temp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+        } catch(IOException e) {
+            Logger.err("Unable to write the thermal store manifest: " + e);
+        }
+    }
+
+    private void readManifest() {
+        File manifest = new File(directory, MANIFEST);
+        if(!manifest.isFile()) {
+            return;
+        }
+        try(BufferedReader in = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            if(!settings().equals(in.readLine())) {
+                Logger.log("Detection settings changed, all files will be processed again.");
+                modified = true;
+                return;
+            }
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                Entry entry = new Entry(parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]);
+                entries.put(entry.path, entry);
+            }
+        } catch(IOException | RuntimeException e) {
+            Logger.err("Ignoring unreadable thermal store manifest: " + e);
+            entries.clear();
+            modified = true;
+        }
+    }
+
+    /**
+     * @return A line describing everything detection depends on, so that stored
+     *         thermals are discarded when any of it changes.
+     */
+    static String settings() {
+        Configuration config = Configuration.getConfig();
+        return "v" + VERSION +
+               " MaxSpeedInThermal=" + config.MaxSpeedInThermal +
+               " MinThermalClimbDistance=" + config.MinThermalClimbDistance +
+               " MinThermalClimbRate=" + config.MinThermalClimbRate +
+               " UsePlanarGeometry=" + config.UsePlanarGeometry;
+    }
+
+    private static void writeThermals(DataOutputStream aOut, Flight aFlight) throws IOException {
+        aOut.writeInt(MAGIC);
+        aOut.writeInt(VERSION);
+        aOut.writeLong(aFlight.date == null ? Long.MIN_VALUE : aFlight.date.getTime());
+        writeString(aOut, aFlight.pilot);
+        writeString(aOut, aFlight.airplane);
+        aOut.writeInt(aFlight.thermals.size());
+        for(Thermal thermal : aFlight.thermals) {
+            FlightTrack track = thermal.track;
+            aOut.writeInt(thermal.endIndex - thermal.startIndex);
+            for(int i = thermal.startIndex; i < thermal.endIndex; i++) {
+                aOut.writeDouble(track.lat(i));
+                aOut.writeDouble(track.lon(i));
+                aOut.writeDouble(track.alt(i));
+                aOut.writeLong(track.time(i));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the stored thermals, each with its own track, as Flight does.
+     */
+    private static List<Thermal> readThermals(File aResultFile) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(aResultFile.toPath())))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a thermal store file");
+            }
+            long date = in.readLong();
+            String pilot = readString(in);
+            String airplane = readString(in);
+            int count = in.readInt();
+            List<Thermal> thermals = new ArrayList<>(count);
+            for(int t = 0; t < count; t++) {
+                int fixes = in.readInt();
+                FlightTrack track = new ArrayFlightTrack(fixes);
+                for(int i = 0; i < fixes; i++) {
+                    track.add(in.readDouble(), in.readDouble(), in.readDouble(), in.readLong());
+                }
+                thermals.add(new Thermal(date == Long.MIN_VALUE ? null : new Date(date), pilot, airplane, FlightTrack.compact(track), 0, fixes));
+            }
+            return thermals;
+        }
+    }
+
+    private static void writeString(DataOutputStream aOut, String aString) throws IOException {
+        aOut.writeBoolean(aString != null);
+        if(aString != null) {
+            aOut.writeUTF(aString);
+        }
+    }
+
+    private static String readString(DataInputStream aIn) throws IOException {
+        return aIn.readBoolean() ? aIn.readUTF() : null;
+    }
+
+    private File resultFileFor(File aKml) {
+        return new File(directory, FlightCache.pathKey(aKml) + ".thermals");
+    }
+
+    /**
+     * A processed input file, as listed in the manifest.
+     */
+    static class Entry {
+        Entry(String aPath, long aSize, long aModified, String aHash) {
+            path = aPath;
+            size = aSize;
+            modified = aModified;
+            hash = aHash;
+        }
+
+        final String path;
+        final long size;
+        final long modified;
+        final String hash;
+    }
+
+    final File directory;
+    final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    volatile boolean modified = false;
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.util.Arrays;
+
+/**
+ * Finds the indices of a FlightTrack at which a given position occurs, by
+ * hashing positions quantized to 1e-6 degrees.
+ *
+ * All indices of one position are chained in ascending order. find() walks the
+ * chain from its start; next() keeps a cursor per position which only moves
+ * forward, so aligning a sequence of positions in track order visits every
+ * index at most once.
+ * @author James Betker
+ */
+class TrackIndex {
+    static final double QUANTUM = 1e6;
+    // Altitudes of a fix placemark and its polyline coordinate must agree to within this.
+    static final double ALTITUDE_TOLERANCE = 1;
+
+    TrackIndex(FlightTrack aTrack) {
+        track = aTrack;
+        final int count = aTrack.size();
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+        mask = capacity - 1;
+        first = new int[capacity];
+        Arrays.fill(first, -1);
+        next = new int[count];
+        // Inserting from the back leaves every chain in ascending order.
+        for(int i = count - 1; i >= 0; i--) {
+            long lat = quantize(aTrack.lat(i));
+            long lon = quantize(aTrack.lon(i));
+            int slot = slotOf(lat, lon);
+            next[i] = first[slot];
+            first[slot] = i;
+        }
+        cursor = first.clone();
+    }
+
+    /**
+     * @param aLat
+     * @param aLon
+     * @param aAfter
+     * @return The first index after aAfter at which the track is at aLat, aLon,
+     *         or -1 if there is none.
+     */
+    int find(double aLat, double aLon, int aAfter) {
+        int slot = slotOf(quantize(aLat), quantize(aLon));
+        for(int i = first[slot]; i != -1; i = next[i]) {
+            if(i > aAfter) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Like find(), but also requires the altitude to match. Indices up to aAfter
+     * are skipped for good, so aAfter must not decrease between calls.
+     * @param aLat
+     * @param aLon
+     * @param aAlt
+     * @param aAfter
+     * @return The first matching index after aAfter, or -1 if there is none.
+     */
+    int next(double aLat, double aLon, double aAlt, int aAfter) {
+        int slot = slotOf(quantize(aLat), quantize(aLon));
+        int i = cursor[slot];
+        while(i != -1 && i <= aAfter) {
+            i = next[i];
+        }
+        cursor[slot] = i;
+        for(; i != -1; i = next[i]) {
+            if(Math.abs(track.alt(i) - aAlt) <= ALTITUDE_TOLERANCE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot holding the chain of the quantized position, or the empty
+     *         slot where it belongs.
+     */
+    private int slotOf(long aLat, long aLon) {
+        long hash = aLat * 0x9E3779B97F4A7C15L + aLon;
+        hash ^= hash >>> 29;
+        int slot = (int)hash & mask;
+        while(first[slot] != -1) {
+            int i = first[slot];
+            if(quantize(track.lat(i)) == aLat && quantize(track.lon(i)) == aLon) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static long quantize(double aDegrees) {
+        return Math.round(aDegrees * QUANTUM);
+    }
+
+    final FlightTrack track;
+    final int mask;
+    final int[] first;
+    final int[] next;
+    final int[] cursor;
+}
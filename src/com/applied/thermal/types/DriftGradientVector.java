@@ -16,6 +16,7 @@
 package com.applied.thermal.types;
 
 import com.applied.thermal.FlightFix;
+import com.applied.thermal.LocalProjection;
 import com.javadocmd.simplelatlng.LatLng;
 import com.javadocmd.simplelatlng.LatLngTool;
 import com.javadocmd.simplelatlng.util.LengthUnit;
@@ -23,9 +24,18 @@ import com.javadocmd.simplelatlng.util.LengthUnit;
 public class DriftGradientVector {
     public double magnitude; //! Magnitude of shift in meters(lateral)/meters(altitude)
     public double heading; //! Velocity heading in degrees.
+    
+    public LocalProjection projection; //! When set, eastShift and northShift are used for extrapolation on this plane.
+    public double eastShift; //! East component of the shift in meters(lateral)/meters(altitude)
+    public double northShift; //! North component of the shift in meters(lateral)/meters(altitude)
 
     public LatLng extrapolateFixTo(FlightFix fix, double altitudeTo) {
         double altitudeDiff = altitudeTo - fix.alt;
+        if(projection != null) {
+            double east = projection.east(fix.pos.getLongitude()) + eastShift * altitudeDiff;
+            double north = projection.north(fix.pos.getLatitude()) + northShift * altitudeDiff;
+            return projection.toLatLng(east, north);
+        }
         double metersLateral = magnitude * altitudeDiff;
         double head = heading;
         if(metersLateral < 0) {
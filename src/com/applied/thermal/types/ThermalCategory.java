@@ -77,9 +77,22 @@ public abstract class ThermalCategory {
         return sum + thermals.size();
     }
 
+    public ThermalSortingField getField() {
+        return field;
+    }
+
+    public ThermalCategory getParentCategory() {
+        return parentCategory;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
     /**
-     * Called when all thermals have been categorized. The category should finish
-     * initialization at this point.
+     * Called once all thermals of this category and its sub-categories have been
+     * added, before any category that follows it is created. The category should
+     * finish initialization at this point.
      */
     public abstract void finish();
 
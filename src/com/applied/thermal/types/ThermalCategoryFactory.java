@@ -22,6 +22,11 @@ import com.applied.thermal.types.ThermalCategory.ThermalSortingField;
  * to generate meaningful output for the categorization that this class performs.
  */
 public interface ThermalCategoryFactory {
+    /**
+     * Passed as the number of thermals of a category when it is not known up front.
+     */
+    public static final int UNKNOWN_SIZE = -1;
+    
     /**
      * Called to create a new category object with the specified title.
      * @param aField The Thermal field for which the category was created.
@@ -30,4 +35,18 @@ public interface ThermalCategoryFactory {
      * @return Category object to be used later.
      */
     public ThermalCategory createCategory(ThermalSortingField aField, String aTitle, ThermalCategory aParentCategory);
+    
+    /**
+     * Called to create a new category object with the specified title. Factories
+     * which need to know the size of a category up front, for instance to write it
+     * out as it is filled, should override this.
+     * @param aField The Thermal field for which the category was created.
+     * @param aTitle A name by which the category goes by.
+     * @param aParentCategory The parent category to which this category belongs to, or null if none.
+     * @param aTotalThermals The number of thermals the category and its sub-categories will receive.
+     * @return Category object to be used later.
+     */
+    public default ThermalCategory createCategory(ThermalSortingField aField, String aTitle, ThermalCategory aParentCategory, int aTotalThermals) {
+        return createCategory(aField, aTitle, aParentCategory);
+    }
 }
\ No newline at end of file
@@ -16,40 +16,87 @@
 package com.applied.thermal.types;
 
 import com.applied.thermal.Thermal;
+import com.applied.thermal.ThermalIndex;
 import com.applied.thermal.types.ThermalCategory.ThermalSortingField;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
 
 /**
  * This class contains an amount of thermals to be processed. It then allows the user
  * to sort these thermals by several fields. These fields are ordered by a list of priorities.
+ * 
+ * A collection created with a limit on the thermals it keeps in memory sorts the
+ * thermals it holds and spills them to temporary files, called runs, whenever the
+ * limit is reached. generateCategories() then merges the runs and streams the
+ * thermals into the categories in order, so only one thermal per run is in 
+ * memory at a time, plus whatever the categories themselves keep.
  * @author James Betker
  */
 public class ThermalCollection implements Comparator<Thermal>{    
+    static final int RUN_BUFFER_SIZE = 1 << 16;
     
     public ThermalCollection() {
+        this(null, 0);
+    }
+    
+    /**
+     * @param aSortingFields The fields generateCategories() will be called with.
+     *                       Only needed with aMaxThermalsInMemory.
+     * @param aMaxThermalsInMemory The number of thermals at which a run is spilled,
+     *                             or 0 to keep every thermal in memory.
+     */
+    public ThermalCollection(ThermalSortingField[] aSortingFields, int aMaxThermalsInMemory) {
+        if(aMaxThermalsInMemory > 0 && aSortingFields == null) {
+            throw new IllegalArgumentException("Spilling thermals requires the sorting fields up front.");
+        }
         thermals = new ArrayList<Thermal>();
+        sortingFields = aSortingFields;
+        maxThermalsInMemory = aMaxThermalsInMemory;
     }
     
     /**
-     * Add a thermal to the collection.
+     * Add a thermal to the collection. Safe to call from multiple threads.
      * @param aThermal 
      */
-    public void add(Thermal aThermal) {
+    public synchronized void add(Thermal aThermal) {
         thermals.add(aThermal);
+        if(maxThermalsInMemory > 0 && thermals.size() >= maxThermalsInMemory) {
+            spill();
+        }
+    }
+    
+    /**
+     * Creates a spatial index over the thermals added so far. Only possible as
+     * long as none of them have been spilled.
+     * @param aAnchor The position of each thermal to index.
+     * @return 
+     */
+    public synchronized ThermalIndex createIndex(ThermalIndex.Anchor aAnchor) {
+        return new ThermalIndex(getThermals(), aAnchor);
     }
     
     /**
-     * Recursive function which calls finish() on all categories in the specified list.
-     * @param aCats 
+     * @return The thermals added so far. Only possible as long as none of them
+     *         have been spilled.
      */
-    private void finishCategories(List<ThermalCategory> aCats) {
-        for(ThermalCategory cat : aCats) {
-            cat.finish();
-            finishCategories(cat.categories);
+    public synchronized List<Thermal> getThermals() {
+        if(!runs.isEmpty()) {
+            throw new IllegalStateException("Spilled thermals are only available through generateCategories().");
         }
+        return thermals;
     }
     
     /**
@@ -63,17 +110,72 @@ public class ThermalCollection implements Comparator<Thermal>{
      * @return 
      */
     public ArrayList<ThermalCategory> generateCategories(ThermalCategoryFactory creator, ThermalSortingField[] aSortingFields) {
-        sortingFields = aSortingFields;
-        Collections.sort(thermals, this);
+        if(runs.isEmpty()) {
+            sortingFields = aSortingFields;
+            sortByKeys();
+            ArrayList<ThermalCategory> ret = generateCategories(creator, new SortedArray(), new SortedArray());
+            sortTitles = null;
+            sortKeys = null;
+            return ret;
+        }
+        
+        if(!Arrays.equals(aSortingFields, sortingFields)) {
+            throw new IllegalArgumentException("Spilled thermals are sorted by " + Arrays.toString(sortingFields));
+        }
+        spill();
+        try {
+            return generateCategories(creator, new RunMerge(false), new RunMerge(true));
+        } finally {
+            for(Run run : runs) {
+                run.keys.delete();
+                run.thermals.delete();
+            }
+            runs.clear();
+        }
+    }
+    
+    /**
+     * Creates the categories for the thermals of aThermals. aTitles must yield the
+     * same sequence, and is read first to learn the size of every category before
+     * it is created.
+     */
+    private ArrayList<ThermalCategory> generateCategories(ThermalCategoryFactory creator, Sorted aTitles, Sorted aThermals) {
+        final int levels = sortingFields.length;
+        
+        // The number of thermals in every category, in the order they are created.
+        int[] sizes = new int[16];
+        int categoryCount = 0;
+        int[] openCategories = new int[levels];
+        String[] previous = null;
+        try {
+            while(aTitles.next()) {
+                final int firstNew = newCategoryLevel(aTitles, previous);
+                for(int i = firstNew; i < levels; i++) {
+                    if(categoryCount == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, categoryCount * 2);
+                    }
+                    sizes[categoryCount] = 0;
+                    openCategories[i] = categoryCount++;
+                }
+                for(int i = 0; i < levels; i++) {
+                    sizes[openCategories[i]]++;
+                }
+                previous = aTitles.titles(previous);
+            }
+        } finally {
+            aTitles.close();
+        }
         
         ArrayList<ThermalCategory> ret = new ArrayList<>();
-        ThermalCategory[] categoryFields = new ThermalCategory[sortingFields.length];
-        for(Thermal thermal : thermals) {
-            // Determine if new categories need to be generated to support this thermal and do so if necessary.
-            for(int i = 0; i < categoryFields.length; i++) {
-                final ThermalValue fieldValue = ThermalValue.getFieldValue(thermal, sortingFields[i]);
-                if(categoryFields[i] == null || !categoryFields[i].title.equals(fieldValue.title)) {
-                    ThermalCategory newCat = creator.createCategory(aSortingFields[i], fieldValue.title, (i == 0) ? null : categoryFields[i-1]);
+        ThermalCategory[] categoryFields = new ThermalCategory[levels];
+        int nextCategory = 0;
+        previous = null;
+        try {
+            while(aThermals.next()) {
+                final int firstNew = newCategoryLevel(aThermals, previous);
+                finishCategories(categoryFields, firstNew);
+                for(int i = firstNew; i < levels; i++) {
+                    ThermalCategory newCat = creator.createCategory(sortingFields[i], aThermals.title(i), (i == 0) ? null : categoryFields[i-1], sizes[nextCategory++]);
                     categoryFields[i] = newCat;
                     if(i == 0) {
                         ret.add(newCat);
@@ -81,14 +183,175 @@ public class ThermalCollection implements Comparator<Thermal>{
                         categoryFields[i-1].addCategory(newCat);
                     }
                 }
+                categoryFields[levels-1].addThermal(aThermals.thermal());
+                previous = aThermals.titles(previous);
             }
-            categoryFields[categoryFields.length-1].addThermal(thermal);
+        } finally {
+            aThermals.close();
         }
-        
-        finishCategories(ret);
-        
+        finishCategories(categoryFields, 0);
         return ret;
     }
+    
+    /**
+     * @param aCurrent
+     * @param aPrevious The titles of the previous thermal, or null for the first.
+     * @return The shallowest level at which the current thermal needs a new 
+     *         category. Once a category changes, all categories beneath it change
+     *         with it.
+     */
+    private static int newCategoryLevel(Sorted aCurrent, String[] aPrevious) {
+        if(aPrevious == null) {
+            return 0;
+        }
+        int level = 0;
+        while(level < aPrevious.length && Objects.equals(aCurrent.title(level), aPrevious[level])) {
+            level++;
+        }
+        return level;
+    }
+    
+    /**
+     * Calls finish() on the open categories at aLevel and below, deepest first.
+     * @param aCategories The open category of every level.
+     * @param aLevel 
+     */
+    private void finishCategories(ThermalCategory[] aCategories, int aLevel) {
+        for(int i = aCategories.length - 1; i >= aLevel; i--) {
+            if(aCategories[i] != null) {
+                aCategories[i].finish();
+                aCategories[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Sorts the thermals in the same order as compare() does, and leaves the title
+     * of every sorting field for every thermal in sortTitles, in the sorted order.
+     * 
+     * Each ThermalValue is computed once per thermal rather than twice per 
+     * comparison. Values are turned into long keys which compare the same way the
+     * values do: numeric values through their sortable bit pattern and strings
+     * through their rank in a sorted dictionary. The last key is the start time
+     * that compare() falls back to. An index array is then sorted on the keys; 
+     * the sort is stable, like the Collections.sort it replaces, so thermals which
+     * compare equal keep the order they were added in.
+     */
+    private void sortByKeys() {
+        final int count = thermals.size();
+        final long[][] keys = new long[sortingFields.length + 1][count];
+        final String[][] titles = new String[sortingFields.length][count];
+        stringFields = new boolean[sortingFields.length];
+        for(int f = 0; f < sortingFields.length; f++) {
+            HashMap<String, Integer> dictionary = null;
+            for(int i = 0; i < count; i++) {
+                ThermalValue value = ThermalValue.getFieldValue(thermals.get(i), sortingFields[f]);
+                titles[f][i] = value.title;
+                if(value.isString) {
+                    if(dictionary == null) {
+                        dictionary = new HashMap<>();
+                    }
+                    dictionary.put(value.title, 0);
+                } else {
+                    keys[f][i] = sortableBits(value.numericValue);
+                }
+            }
+            // A field holds either string or numeric values, never both.
+            if(dictionary != null) {
+                stringFields[f] = true;
+                String[] words = dictionary.keySet().toArray(new String[dictionary.size()]);
+                Arrays.sort(words);
+                for(int rank = 0; rank < words.length; rank++) {
+                    dictionary.put(words[rank], rank);
+                }
+                for(int i = 0; i < count; i++) {
+                    keys[f][i] = dictionary.get(titles[f][i]);
+                }
+            }
+        }
+        for(int i = 0; i < count; i++) {
+            keys[sortingFields.length][i] = thermals.get(i).getStartTime();
+        }
+
+        Integer[] order = new Integer[count];
+        for(int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.parallelSort(order, (a, b) -> {
+            for(long[] key : keys) {
+                int compare = Long.compare(key[a], key[b]);
+                if(compare != 0) {
+                    return compare;
+                }
+            }
+            return 0;
+        });
+
+        ArrayList<Thermal> sorted = new ArrayList<>(count);
+        sortTitles = new String[sortingFields.length][count];
+        sortKeys = new long[keys.length][count];
+        for(int i = 0; i < count; i++) {
+            sorted.add(thermals.get(order[i]));
+            for(int f = 0; f < sortingFields.length; f++) {
+                sortTitles[f][i] = titles[f][order[i]];
+            }
+            for(int k = 0; k < keys.length; k++) {
+                sortKeys[k][i] = keys[k][order[i]];
+            }
+        }
+        thermals = sorted;
+    }
+    
+    /**
+     * Sorts the thermals in memory and writes them to a new run. The keys and
+     * titles go to one file and the thermals to another, so that the sizes of
+     * the categories can be counted without reading the thermals.
+     * 
+     * Keys of string fields are only ranks within the run, so runs are merged on
+     * the titles of those fields instead.
+     */
+    private void spill() {
+        if(thermals.isEmpty()) {
+            return;
+        }
+        sortByKeys();
+        Run run = new Run();
+        run.count = thermals.size();
+        try {
+            run.keys = File.createTempFile("thermals", ".keys");
+            run.thermals = File.createTempFile("thermals", ".run");
+            run.keys.deleteOnExit();
+            run.thermals.deleteOnExit();
+            try(DataOutputStream keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.keys), RUN_BUFFER_SIZE));
+                DataOutputStream thermalsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.thermals), RUN_BUFFER_SIZE))) {
+                for(int i = 0; i < run.count; i++) {
+                    for(int f = 0; f < sortingFields.length; f++) {
+                        keysOut.writeLong(sortKeys[f][i]);
+                        keysOut.writeUTF(sortTitles[f][i]);
+                    }
+                    keysOut.writeLong(sortKeys[sortingFields.length][i]);
+                    thermals.get(i).write(thermalsOut);
+                }
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        runs.add(run);
+        thermals = new ArrayList<>();
+        sortTitles = null;
+        sortKeys = null;
+    }
+    
+    /**
+     * Maps a double onto a long such that comparing the longs gives the same 
+     * result as Double.compare() on the doubles.
+     * @param aValue
+     * @return 
+     */
+    static long sortableBits(double aValue) {
+        long bits = Double.doubleToLongBits(aValue);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
 
     /**
      * Utilized to sort a list of thermals.
@@ -110,6 +373,195 @@ public class ThermalCollection implements Comparator<Thermal>{
         return aThermal1.getFirstFix().time.compareTo(aThermal2.getFirstFix().time);
     }
     
+    /**
+     * A sequence of thermals in sorted order, along with their titles.
+     */
+    private abstract class Sorted {
+        /**
+         * Moves to the next thermal.
+         * @return False once there are no more thermals.
+         */
+        abstract boolean next();
+        
+        abstract String title(int aLevel);
+        
+        abstract Thermal thermal();
+        
+        /**
+         * @param aTitles An array to reuse, or null.
+         * @return The titles of the current thermal.
+         */
+        String[] titles(String[] aTitles) {
+            String[] titles = aTitles == null ? new String[sortingFields.length] : aTitles;
+            for(int i = 0; i < titles.length; i++) {
+                titles[i] = title(i);
+            }
+            return titles;
+        }
+        
+        void close() {
+        }
+    }
+    
+    /**
+     * The thermals of this collection after sortByKeys().
+     */
+    private class SortedArray extends Sorted {
+        @Override
+        boolean next() {
+            return ++position < thermals.size();
+        }
+
+        @Override
+        String title(int aLevel) {
+            return sortTitles[aLevel][position];
+        }
+
+        @Override
+        Thermal thermal() {
+            return thermals.get(position);
+        }
+        
+        int position = -1;
+    }
+    
+    /**
+     * The files of a spilled run.
+     */
+    private static class Run {
+        File keys;
+        File thermals;
+        int count;
+    }
+    
+    /**
+     * The current record of a run while it is merged.
+     */
+    private class RunReader {
+        RunReader(Run aRun, int aIndex, boolean aWithThermals) throws IOException {
+            index = aIndex;
+            remaining = aRun.count;
+            keysIn = new DataInputStream(new BufferedInputStream(new FileInputStream(aRun.keys), RUN_BUFFER_SIZE));
+            thermalsIn = aWithThermals ? new DataInputStream(new BufferedInputStream(new FileInputStream(aRun.thermals), RUN_BUFFER_SIZE)) : null;
+            keys = new long[sortingFields.length + 1];
+            titles = new String[sortingFields.length];
+        }
+        
+        /**
+         * Reads the next record of the run.
+         * @return False once the run is exhausted.
+         */
+        boolean advance() throws IOException {
+            if(remaining == 0) {
+                return false;
+            }
+            remaining--;
+            for(int f = 0; f < titles.length; f++) {
+                keys[f] = keysIn.readLong();
+                titles[f] = keysIn.readUTF();
+            }
+            keys[titles.length] = keysIn.readLong();
+            if(thermalsIn != null) {
+                thermal = Thermal.read(thermalsIn);
+            }
+            return true;
+        }
+        
+        void close() throws IOException {
+            keysIn.close();
+            if(thermalsIn != null) {
+                thermalsIn.close();
+            }
+        }
+        
+        final int index;
+        final DataInputStream keysIn;
+        final DataInputStream thermalsIn;
+        final long[] keys;
+        final String[] titles;
+        Thermal thermal;
+        int remaining;
+    }
+    
+    /**
+     * Merges the spilled runs in the order sortByKeys() would have given the
+     * thermals. Thermals which compare equal come from the earliest run first,
+     * so the merge is as stable as the sort.
+     */
+    private class RunMerge extends Sorted {
+        RunMerge(boolean aWithThermals) {
+            queue = new PriorityQueue<>(Math.max(1, runs.size()), this::compare);
+            try {
+                for(int i = 0; i < runs.size(); i++) {
+                    RunReader reader = new RunReader(runs.get(i), i, aWithThermals);
+                    readers.add(reader);
+                    if(reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            } catch(IOException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+        
+        private int compare(RunReader a, RunReader b) {
+            for(int f = 0; f < a.titles.length; f++) {
+                int compare = stringFields[f] ? a.titles[f].compareTo(b.titles[f]) : Long.compare(a.keys[f], b.keys[f]);
+                if(compare != 0) {
+                    return compare;
+                }
+            }
+            int compare = Long.compare(a.keys[a.titles.length], b.keys[b.titles.length]);
+            return compare != 0 ? compare : Integer.compare(a.index, b.index);
+        }
+        
+        @Override
+        boolean next() {
+            try {
+                if(current != null && current.advance()) {
+                    queue.add(current);
+                }
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+            current = queue.poll();
+            return current != null;
+        }
+
+        @Override
+        String title(int aLevel) {
+            return current.titles[aLevel];
+        }
+
+        @Override
+        Thermal thermal() {
+            return current.thermal;
+        }
+        
+        @Override
+        final void close() {
+            for(RunReader reader : readers) {
+                try {
+                    reader.close();
+                } catch(IOException e) {
+                    // Nothing is written to runs, so there is nothing to lose.
+                }
+            }
+        }
+        
+        final ArrayList<RunReader> readers = new ArrayList<>();
+        final PriorityQueue<RunReader> queue;
+        RunReader current;
+    }
+    
     List<Thermal> thermals;
     ThermalSortingField[] sortingFields;
+    final int maxThermalsInMemory;
+    final ArrayList<Run> runs = new ArrayList<>();
+    
+    // Populated by sortByKeys(), and only kept while generateCategories() runs.
+    String[][] sortTitles;
+    long[][] sortKeys;
+    boolean[] stringFields;
 }
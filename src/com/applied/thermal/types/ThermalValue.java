@@ -19,8 +19,9 @@ import com.applied.thermal.Thermal;
 import static com.applied.thermal.types.ThermalCategory.CLIMB_BRACKET_INTERVALS;
 import static com.applied.thermal.types.ThermalCategory.STRENGTH_BRACKET_INTERVALS;
 import java.text.DateFormatSymbols;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
 
 /**
  * A type which holds:
@@ -33,8 +34,13 @@ public class ThermalValue implements Comparable {
     public double interval = 1.;
     public boolean isString = false;
     
-    private static Calendar calendar = new GregorianCalendar();
-    private static DateFormatSymbols dateFormatSymbols = new DateFormatSymbols();
+    // Field extraction only reads these, so it is safe to call from any thread.
+    private static final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+    private static final String[] monthNames = new DateFormatSymbols().getMonths();
+    private static final TitleCache yearTitles = new TitleCache(1.);
+    private static final TitleCache strengthTitles = new TitleCache(STRENGTH_BRACKET_INTERVALS);
+    private static final TitleCache climbTitles = new TitleCache(CLIMB_BRACKET_INTERVALS);
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
 
     /**
      * Constructor to use for values which have a numeric value tied to a string
@@ -78,6 +84,18 @@ public class ThermalValue implements Comparable {
         isString = true;
     }
     
+    /**
+     * Equivalent to ThermalValue(aVal, aInterval), with the title taken from aTitles.
+     * @param aVal
+     * @param aTitles 
+     */
+    private ThermalValue(double aVal, TitleCache aTitles) {
+        double roundNumber = Math.round(aVal / aTitles.interval);
+        numericValue = roundNumber * aTitles.interval;
+        interval = aTitles.interval;
+        title = aTitles.get(roundNumber, numericValue);
+    }
+    
     /**
      * Retrieves a value from a Thermal object for a given field.
      * @param aThermal
@@ -85,23 +103,63 @@ public class ThermalValue implements Comparable {
      * @return 
      */
     public static ThermalValue getFieldValue(Thermal aThermal, ThermalCategory.ThermalSortingField aField) {
-        calendar.setTime(aThermal.getFirstFix().time);
         switch(aField) {
             case Year:
-                return new ThermalValue(calendar.get(Calendar.YEAR));
+                return new ThermalValue(yearOf(localEpochDay(aThermal.getStartTime())), yearTitles);
             case Month:
-                int month = calendar.get(Calendar.MONTH);
-                return new ThermalValue(dateFormatSymbols.getMonths()[month], month);
+                int month = monthOf(localEpochDay(aThermal.getStartTime()));
+                return new ThermalValue(monthNames[month], month);
             case Glider:
-                return new ThermalValue(aThermal.getFlight().getAirplane());
+                return new ThermalValue(aThermal.getAirplane());
             case ThermalStrength:
-                return new ThermalValue(aThermal.getAverageClimbRate(), STRENGTH_BRACKET_INTERVALS);
+                return new ThermalValue(aThermal.getAverageClimbRate(), strengthTitles);
             case ThermalClimb:
-                return new ThermalValue(aThermal.getTotalClimb(), CLIMB_BRACKET_INTERVALS);
+                return new ThermalValue(aThermal.getTotalClimb(), climbTitles);
         }
         return null;
     }
     
+    /**
+     * @param aEpochMillis
+     * @return The number of days since 1970-01-01 in the default time zone.
+     */
+    static long localEpochDay(long aEpochMillis) {
+        long offsetMillis;
+        if(zoneRules.isFixedOffset()) {
+            offsetMillis = zoneRules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L;
+        } else {
+            offsetMillis = zoneRules.getOffset(Instant.ofEpochMilli(aEpochMillis)).getTotalSeconds() * 1000L;
+        }
+        return Math.floorDiv(aEpochMillis + offsetMillis, MILLIS_PER_DAY);
+    }
+    
+    /**
+     * Converts a day since 1970-01-01 into a proleptic Gregorian year.
+     * @param aEpochDay
+     * @return 
+     */
+    static int yearOf(long aEpochDay) {
+        long z = aEpochDay + 719468; // Days since 0000-03-01; years start in March.
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        return (int)(yearOfEra + era * 400) + (monthOf(aEpochDay) < 2 ? 1 : 0);
+    }
+    
+    /**
+     * Converts a day since 1970-01-01 into a month, 0 for January as in Calendar.
+     * @param aEpochDay
+     * @return 
+     */
+    static int monthOf(long aEpochDay) {
+        long z = aEpochDay + 719468;
+        long dayOfEra = z - Math.floorDiv(z, 146097) * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (int)((5 * dayOfYear + 2) / 153);
+        return monthFromMarch < 10 ? monthFromMarch + 2 : monthFromMarch - 10;
+    }
+    
     protected static double bracketRound(double aToRound, double aBrackets) {
         double roundNumber = aToRound / aBrackets;
         roundNumber = Math.round(roundNumber);
@@ -114,7 +172,41 @@ public class ThermalValue implements Comparable {
         if(isString) {
             return (title.compareTo(tv2.title));
         } else {
-            return ((new Double(numericValue)).compareTo(tv2.numericValue));
+            return Double.compare(numericValue, tv2.numericValue);
+        }
+    }
+    
+    /**
+     * Caches the titles of the brackets of one interval, so that Double.toString()
+     * runs once per bracket rather than once per value. Entries may be computed
+     * more than once by racing threads, but always to an equal String.
+     */
+    private static class TitleCache {
+        static final int SIZE = 8192;
+        
+        TitleCache(double aInterval) {
+            interval = aInterval;
+        }
+        
+        /**
+         * @param aBracket The index of the bracket, which is aValue / interval.
+         * @param aValue The value of the bracket.
+         * @return Double.toString(aValue)
+         */
+        String get(double aBracket, double aValue) {
+            if(aBracket < -SIZE / 2 || aBracket >= SIZE / 2) {
+                return Double.toString(aValue);
+            }
+            int index = (int)aBracket + SIZE / 2;
+            String title = titles[index];
+            if(title == null) {
+                title = Double.toString(aValue);
+                titles[index] = title;
+            }
+            return title;
         }
+        
+        final double interval;
+        final String[] titles = new String[SIZE];
     }
 }
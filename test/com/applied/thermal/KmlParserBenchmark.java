@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 James Betker.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.applied.thermal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Compares the time each OLCKmlRecord parser takes to read an OLC KML export.
+ * The '#polyline' placemark of the source file is repeated to scale the track
+ * up to the size of a long flight, and every parser reads the result repeatedly
+ * after a warm-up. The tracks of all parsers are checked against the first one
+ * so that a faster parser can't be faster by reading something else.
+ *
+ * Usage: KmlParserBenchmark [kml file] [track copies] [iterations]
+ * @author James Betker
+ */
+public class KmlParserBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        File source = new File(args.length > 0 ? args[0] : "testdata/test.kml");
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        File scaled = scale(source, copies);
+        try {
+            FlightTrack reference = null;
+            for(OLCKmlRecord.ParserType parser : OLCKmlRecord.ParserType.values()) {
+                try {
+                    FlightTrack track = parse(scaled, parser);
+                    if(reference == null) {
+                        reference = track;
+                    } else if(!sameTrack(reference, track)) {
+                        System.out.println(parser + ": track differs from the other parsers");
+                        continue;
+                    }
+                    for(int i = 0; i < iterations; i++) {
+                        parse(scaled, parser);
+                    }
+                    long start = System.nanoTime();
+                    for(int i = 0; i < iterations; i++) {
+                        parse(scaled, parser);
+                    }
+                    double msPerParse = (System.nanoTime() - start) / 1e6 / iterations;
+                    System.out.println(String.format("%-10s %8.2f ms/parse %10.0f fixes/s", parser, msPerParse, track.size() / msPerParse * 1000));
+                } catch(RuntimeException e) {
+                    System.out.println(parser + ": failed with " + e);
+                }
+            }
+        } finally {
+            scaled.delete();
+        }
+    }
+
+    /**
+     * Writes a copy of aKml whose '#polyline' placemark is repeated aCopies times,
+     * which every parser joins into a single track.
+     */
+    static File scale(File aKml, int aCopies) throws IOException {
+        String kml = new String(Files.readAllBytes(aKml.toPath()), StandardCharsets.UTF_8);
+        int style = kml.indexOf("<styleUrl>#polyline</styleUrl>");
+        if(style == -1) {
+            throw new IOException("No polyline placemark found in " + aKml.getAbsolutePath());
+        }
+        int start = kml.lastIndexOf("<Placemark", style);
+        int end = kml.indexOf("</Placemark>", style) + "</Placemark>".length();
+        String placemark = kml.substring(start, end);
+
+        StringBuilder builder = new StringBuilder(kml.length() + placemark.length() * aCopies);
+        builder.append(kml, 0, end);
+        for(int i = 1; i < aCopies; i++) {
+            builder.append('\n').append(placemark);
+        }
+        builder.append(kml, end, kml.length());
+
+        File scaled = File.createTempFile("scaled", ".kml");
+        Files.write(scaled.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Scaled " + aKml.getName() + " to " + (scaled.length() / 1024) + " KiB with " + aCopies + " track copies");
+        return scaled;
+    }
+
+    /**
+     * Reads aKml with aParser, keeping the per-file log lines of the record out
+     * of the results.
+     */
+    static FlightTrack parse(File aKml, OLCKmlRecord.ParserType aParser) {
+        PrintStream out = System.out;
+        System.setOut(DISCARD);
+        try {
+            return new OLCKmlRecord(aKml, aParser).getFlight().getTrack();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    static boolean sameTrack(FlightTrack aFirst, FlightTrack aSecond) {
+        if(aFirst.size() != aSecond.size()) {
+            return false;
+        }
+        for(int i = 0; i < aFirst.size(); i++) {
+            if(aFirst.lat(i) != aSecond.lat(i) || aFirst.lon(i) != aSecond.lon(i)
+                    || aFirst.alt(i) != aSecond.alt(i) || aFirst.time(i) != aSecond.time(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+}